@@ -27,14 +27,19 @@ public class TestApp {
 
         switch (operation) {
             case "BACKUP":
-                if (args.length != 3) {
+                if (args.length != 3 && args.length != 5) {
                     System.err.println("Invalid number of arguments for operation BACKUP.");
                     return;
                 }
                 pathName = args[2];
 
                 try {
-                    System.out.println(initiatorPeer.backup(pathName));
+                    if (args.length == 5)
+                        System.out.println(initiatorPeer.backup(pathName, Integer.parseInt(args[3]), Integer.parseInt(args[4])));
+                    else
+                        System.out.println(initiatorPeer.backup(pathName));
+                } catch (NumberFormatException e) {
+                    System.err.println("The number of data and parity fragments must be integers.");
                 } catch (RemoteException ignored) {
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -7,6 +7,8 @@ import java.rmi.RemoteException;
 public interface IInitiatorPeer extends Remote {
     String backup(String pathName) throws IOException;
 
+    String backup(String pathName, int dataFragments, int parityFragments) throws IOException;
+
     boolean restore(String hexKey, String filename) throws IOException;
 
     boolean delete(String hexKey) throws RemoteException;
@@ -1,31 +1,40 @@
 package server;
 
-import server.exceptions.DecryptionFailedException;
 import server.utils.Encryption;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.xml.bind.DatatypeConverter;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.io.*;
 import java.math.BigInteger;
-import java.security.InvalidKeyException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class FileManager {
     private final String BASE_DIR;
+    private final BigInteger serverId;
 
-    private static final String REPLICAS_DIR = "Replicas/";
-    private static final String STORED_FILES_DIR = "StoredFiles/";
+    private static final String VIRTUAL_NODES_DIR = "VirtualNodes/";
     private static final String KEYS_DIR = "Keys/";
+    private static final String SPOOL_DIR = "Spool/";
+    public static final int COMPACTION_PERIOD = 60; // In seconds
 
-    public FileManager(int nodeId) throws IOException, NoSuchAlgorithmException {
-        BASE_DIR = String.valueOf(nodeId) + "/";
+    private final ConcurrentHashMap<BigInteger, NodeStorage> storages = new ConcurrentHashMap<>();
+
+    /**
+     * @param serverId ID of the first node hosted by this server, which names its directory.
+     */
+    public FileManager(BigInteger serverId) throws IOException, NoSuchAlgorithmException {
+        this.serverId = serverId;
+        BASE_DIR = serverId + "/";
         createDirectories();
+        clearSpoolDir();
         Encryption.initializeKey(getKeysDir());
     }
 
@@ -33,31 +42,77 @@ public class FileManager {
         File parentDir = new File(BASE_DIR);
         parentDir.mkdir();
 
-        File storedFilesDir = new File(getStoredFilesDir());
-        storedFilesDir.mkdir();
-
         File keysDir = new File(getKeysDir());
         keysDir.mkdir();
-    }
 
-    private String getStoredFilesDir() {
-        return BASE_DIR + STORED_FILES_DIR;
+        File spoolDir = new File(BASE_DIR + SPOOL_DIR);
+        spoolDir.mkdir();
     }
 
-    private String getReplicasDir() {
-        return BASE_DIR + REPLICAS_DIR;
+    /**
+     * Deletes payloads left behind in the spool directory by a previous run.
+     */
+    private void clearSpoolDir() {
+        File[] leftovers = new File(BASE_DIR + SPOOL_DIR).listFiles();
+        if (leftovers == null)
+            return;
+
+        for (File leftover : leftovers)
+            leftover.delete();
     }
 
     private String getKeysDir() {
         return BASE_DIR + KEYS_DIR;
     }
 
-    public void storeReplica(BigInteger key, byte[] content) throws IOException {
-        saveFile(getReplicasDir() + DatatypeConverter.printHexBinary(key.toByteArray()), content);
+    /**
+     * Gets the directory where payloads are received before being stored.
+     *
+     * @return
+     */
+    public Path getSpoolDir() {
+        return Paths.get(BASE_DIR + SPOOL_DIR);
     }
 
-    public void storeFile(BigInteger key, byte[] content) throws IOException {
-        saveFile(getStoredFilesDir() + DatatypeConverter.printHexBinary(key.toByteArray()), content);
+    /**
+     * Gets the storage of the node with the given ID, opening it if needed. The first node keeps its values
+     * directly in the server's directory, and every other virtual node in a directory of its own.
+     *
+     * @param nodeId
+     * @return
+     * @throws IOException
+     */
+    public NodeStorage getStorage(BigInteger nodeId) throws IOException {
+        try {
+            return storages.computeIfAbsent(nodeId, id -> {
+                try {
+                    return new NodeStorage(id.equals(serverId)
+                            ? Paths.get(BASE_DIR)
+                            : Paths.get(BASE_DIR + VIRTUAL_NODES_DIR + id));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Rebuilds the indexes of every opened storage from the segments left by the previous run.
+     * The segments of each store are scanned in parallel, using every available core.
+     *
+     * @throws IOException
+     */
+    public void recover() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+        try {
+            for (NodeStorage storage : storages.values())
+                storage.recover(executor);
+        } finally {
+            executor.shutdown();
+        }
     }
 
     private void saveFile(String path, byte[] content) throws IOException {
@@ -70,24 +125,37 @@ public class FileManager {
     }
 
     public byte[] loadFile(String path) throws IOException {
-        FileInputStream fileInputStream = new FileInputStream(path);
-
-        byte[] content = new byte[fileInputStream.available()];
-        fileInputStream.read(content);
-        return content;
+        return Files.readAllBytes(Paths.get(path));
     }
 
-    public byte[] loadStoredFile(BigInteger key) throws IOException {
-        return loadFile(getStoredFilesDir() + DatatypeConverter.printHexBinary(key.toByteArray()));
+    public void saveRestoredFile(String path, byte[] content) throws IOException {
+        saveFile(path, content);
     }
 
-    public void saveRestoredFile(String path, byte[] content) throws IOException, IllegalBlockSizeException, InvalidKeyException, BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException, ClassNotFoundException, DecryptionFailedException {
-        saveFile(path, Encryption.decrypt(content));
+    /**
+     * Opens the file a restore will be written to, truncating it if it already exists.
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public FileChannel openRestoredFile(String path) throws IOException {
+        return FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
     }
 
-    public void delete(BigInteger key) {
-        File file = new File(getStoredFilesDir() + DatatypeConverter.printHexBinary(key.toByteArray()));
-        file.delete();
+    /**
+     * Writes a restored chunk at the given offset of the file. Chunks may be written in any order.
+     *
+     * @param channel
+     * @param offset
+     * @param content
+     * @throws IOException
+     */
+    public void saveRestoredChunk(FileChannel channel, long offset, byte[] content) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+
+        while (buffer.hasRemaining())
+            offset += channel.write(buffer, offset);
     }
 
 }
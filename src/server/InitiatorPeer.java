@@ -2,23 +2,38 @@ package server;
 
 import common.IInitiatorPeer;
 import server.chord.DistributedHashTable;
+import server.chord.NodeInfo;
 import server.exceptions.DecryptionFailedException;
+import server.utils.Chunker;
+import server.utils.ContentDefinedChunker;
 import server.utils.Encryption;
+import server.utils.ReedSolomon;
 import server.utils.Utils;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.xml.bind.DatatypeConverter;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.rmi.server.UnicastRemoteObject;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static server.chord.Node.MAX_NODES;
+import static server.chord.Node.OPERATION_MAX_FAILED_ATTEMPTS;
 
 public class InitiatorPeer extends UnicastRemoteObject implements IInitiatorPeer {
+    private static final int MAX_IN_FLIGHT_CHUNKS = 8;
+
+    private final ExecutorService restoreThreadPool = Executors.newFixedThreadPool(MAX_IN_FLIGHT_CHUNKS);
     private final DistributedHashTable dht;
     private final FileManager fileManager;
 
@@ -30,45 +45,196 @@ public class InitiatorPeer extends UnicastRemoteObject implements IInitiatorPeer
 
     /**
      * Starts the Backup Protocol from the file in the given path.
+     * The file is split into content-defined chunks, which are hashed and encrypted one at a time and stored
+     * under a key derived from their content, so chunks shared with previous backups are not stored again.
+     * A manifest listing the chunks is stored last and its key is the one returned to the user.
+     * At most MAX_IN_FLIGHT_CHUNKS chunks are being inserted at any time, which bounds the memory used.
+     * Every chunk is replicated.
+     *
      * @param pathName
      * @return
      * @throws IOException
      */
     @Override
     public String backup(String pathName) throws IOException {
-        byte[] file;
-        try {
-            file = fileManager.loadFile(pathName);
+        return backup(pathName, new Manifest());
+    }
+
+    /**
+     * Same as backup(pathName), but every chunk is erasure-coded into the given number of data and parity
+     * fragments instead of being replicated. The chunk can be restored as long as any dataFragments of its
+     * fragments are, using (dataFragments + parityFragments) / dataFragments times its size in storage.
+     * The fragments of a chunk are stored by the nodes that follow the chunk's owner, one each, so that losing a
+     * node loses at most one of them while there are more nodes than fragments.
+     *
+     * @param pathName
+     * @param dataFragments
+     * @param parityFragments
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public String backup(String pathName, int dataFragments, int parityFragments) throws IOException {
+        if (dataFragments < 1 || parityFragments < 1 || dataFragments + parityFragments > ReedSolomon.MAX_FRAGMENTS)
+            return "Invalid number of fragments. There must be at least one of each, and at most "
+                    + ReedSolomon.MAX_FRAGMENTS + " in total.";
+
+        return backup(pathName, new Manifest(dataFragments, parityFragments));
+    }
+
+    /**
+     * Backs up the file in the given path, storing its chunks as the given manifest says.
+     *
+     * @param pathName
+     * @param manifest
+     * @return
+     * @throws IOException
+     */
+    private String backup(String pathName, Manifest manifest) throws IOException {
+        Semaphore inFlightChunks = new Semaphore(MAX_IN_FLIGHT_CHUNKS);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<CompletableFuture<Boolean>> insertions = new ArrayList<>();
+
+        try (FileInputStream inputStream = new FileInputStream(pathName)) {
+            Chunker chunker = new ContentDefinedChunker(inputStream);
+
+            byte[] chunk;
+            while ((chunk = chunker.nextChunk()) != null) {
+                /* Do not bother inserting the remaining chunks if one of them already failed. */
+                if (failed.get())
+                    break;
+
+                /* Each server encrypts with its own key, so the key is taken from the encrypted chunk: chunks are
+                 * only deduplicated when they are stored with the same bytes, which the server can decrypt. */
+                byte[] encryptedChunk = Encryption.encrypt(chunk);
+                BigInteger chunkKey = new BigInteger(Utils.hash(encryptedChunk));
+
+                List<BigInteger> fragmentKeys = manifest.isErasureCoded()
+                        ? placeFragments(chunkKey, manifest.getDataFragments() + manifest.getParityFragments())
+                        : null;
+
+                inFlightChunks.acquire();
+                insertions.add(insertChunk(manifest, chunkKey, fragmentKeys, encryptedChunk).whenComplete((inserted, e) -> {
+                    if (e != null || !inserted)
+                        failed.set(true);
+
+                    inFlightChunks.release();
+                }));
+
+                manifest.addChunk(chunkKey, chunk.length, fragmentKeys);
+            }
+
+            for (CompletableFuture<Boolean> insertion : insertions)
+                if (!insertion.get())
+                    return "File " + pathName + " could not be inserted in the system.";
         } catch (IOException e) {
             return "Could not open file. Aborting backup...";
+        } catch (NoSuchAlgorithmException e) {
+            return "Could not create key for file backup. Aborting...";
+        } catch (InvalidKeyException | NoSuchPaddingException | BadPaddingException | IllegalBlockSizeException e) {
+            return "Could not encrypt file. Aborting backup...";
+        } catch (InterruptedException | ExecutionException e) {
+            return "Backup of file " + pathName + " timed out.";
         }
 
         BigInteger key;
+        byte[] manifestContent;
         try {
-            key = new BigInteger(Utils.hash(file));
+            manifestContent = Encryption.encrypt(manifest.toByteArray());
+            key = new BigInteger(Utils.hash(manifestContent));
         } catch (NoSuchAlgorithmException e) {
             return "Could not create key for file backup. Aborting...";
-        }
-
-        try {
-            file = Encryption.encrypt(file);
-        } catch (InvalidKeyException | NoSuchPaddingException | BadPaddingException | NoSuchAlgorithmException | IllegalBlockSizeException e) {
+        } catch (InvalidKeyException | NoSuchPaddingException | BadPaddingException | IllegalBlockSizeException e) {
             return "Could not encrypt file. Aborting backup...";
         }
 
         try {
-            if (dht.insert(key, file))
+            if (dht.insert(key, manifestContent).get())
                 return "File " + pathName + " stored with key " + DatatypeConverter.printHexBinary(key.toByteArray());
             else
                 return "File " + pathName + " could not be inserted in the system.";
 
-        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+        } catch (InterruptedException | ExecutionException e) {
             return "Backup of file " + pathName + " timed out.";
         }
     }
 
+    /**
+     * Chooses the keys of the fragments of a chunk, walking the network from the owner of the chunk: the key of
+     * each fragment is owned by the node that follows the owner of the previous one. Keys are derived from the
+     * chunk key, so that backing up a chunk again while the network is the same does not store it again.
+     *
+     * @param chunkKey
+     * @param fragments
+     * @return
+     * @throws InterruptedException
+     * @throws ExecutionException if the owner of a fragment could not be found
+     * @throws NoSuchAlgorithmException
+     */
+    private List<BigInteger> placeFragments(BigInteger chunkKey, int fragments)
+            throws InterruptedException, ExecutionException, NoSuchAlgorithmException {
+        List<BigInteger> keys = new ArrayList<>(fragments);
+        NodeInfo previous = dht.findOwner(chunkKey).get();
+
+        for (int i = 0; i < fragments; i++) {
+            NodeInfo owner = dht.findOwner(Utils.getSuccessorKey(previous)).get();
+
+            /* The owner owns every key after the previous node, up to its own ID. */
+            BigInteger range = owner.getId().subtract(previous.getId()).mod(MAX_NODES);
+            if (range.signum() == 0)
+                range = MAX_NODES;
+
+            byte[] seed = ByteBuffer.allocate(chunkKey.toByteArray().length + 4).put(chunkKey.toByteArray()).putInt(i).array();
+            BigInteger offset = new BigInteger(1, Utils.hash(seed)).mod(range).add(BigInteger.ONE);
+            keys.add(Utils.addToNodeId(previous.getId(), offset));
+
+            previous = owner;
+        }
+
+        return keys;
+    }
+
+    /**
+     * Inserts an encrypted chunk, or its fragments if the chunks of the manifest are erasure-coded.
+     *
+     * @param manifest
+     * @param chunkKey
+     * @param fragmentKeys keys of the fragments, or null if the chunk is replicated
+     * @param encryptedChunk
+     * @return a future completed with true once the chunk, or every fragment of it, is stored.
+     */
+    private CompletableFuture<Boolean> insertChunk(Manifest manifest, BigInteger chunkKey, List<BigInteger> fragmentKeys,
+                                                   byte[] encryptedChunk) {
+        if (!manifest.isErasureCoded())
+            return dht.insert(chunkKey, encryptedChunk);
+
+        byte[][] fragments = new ReedSolomon(manifest.getDataFragments(), manifest.getParityFragments()).encode(encryptedChunk);
+        List<CompletableFuture<Boolean>> insertions = new ArrayList<>();
+
+        for (int i = 0; i < fragments.length; i++)
+            insertions.add(dht.insertFragment(fragmentKeys.get(i), fragments[i]));
+
+        return allSucceeded(insertions);
+    }
+
+    /**
+     * Gets a future completed once all the given futures are, with true if all of them completed with true.
+     *
+     * @param futures
+     * @return
+     */
+    private static CompletableFuture<Boolean> allSucceeded(List<CompletableFuture<Boolean>> futures) {
+        CompletableFuture<Boolean> result = CompletableFuture.completedFuture(true);
+
+        for (CompletableFuture<Boolean> future : futures)
+            result = result.thenCombine(future.exceptionally(e -> false), Boolean::logicalAnd);
+
+        return result;
+    }
+
     /**
      * Starts the Restore Protocol from the file with the given key and stores it in the given path.
+     * If the key refers to a manifest, its chunks are fetched in parallel and written directly to the file.
      *
      * @param hexKey
      * @param filename
@@ -78,39 +244,245 @@ public class InitiatorPeer extends UnicastRemoteObject implements IInitiatorPeer
     @Override
     public boolean restore(String hexKey, String filename) throws IOException {
         BigInteger key = new BigInteger(DatatypeConverter.parseHexBinary(hexKey));
-        byte[] content = dht.get(key);
+        byte[] content = dht.get(key).join();
 
-        if (content != null) {
-            try {
-                fileManager.saveRestoredFile(filename, content);
-            } catch (DecryptionFailedException | BadPaddingException e) {
-                System.err.println("Attempted decryption with wrong key. Restore failed...");
-                return false;
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
-            }
-        } else {
+        if (content == null) {
             System.err.println("File stored with key " + hexKey + " not found.");
             return false;
         }
 
+        try {
+            content = Encryption.decrypt(content);
+        } catch (DecryptionFailedException | BadPaddingException e) {
+            System.err.println("Attempted decryption with wrong key. Restore failed...");
+            return false;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        Manifest manifest = Manifest.fromByteArray(content);
+        if (manifest == null) {
+            /* Files backed up before chunking was introduced are stored as a single value. */
+            fileManager.saveRestoredFile(filename, content);
+        } else if (!restoreChunks(manifest, filename)) {
+            return false;
+        }
+
         System.out.println("File stored with key " + hexKey + " restored successfully.");
         return true;
     }
 
+    /**
+     * Fetches the chunks of the given manifest in parallel and writes each one at its offset in the given file.
+     * At most MAX_IN_FLIGHT_CHUNKS chunks are being fetched at any time, which bounds the memory used.
+     * Only decrypting and writing a fetched chunk takes a thread of the restore pool.
+     *
+     * @param manifest
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    private boolean restoreChunks(Manifest manifest, String filename) throws IOException {
+        Semaphore inFlightChunks = new Semaphore(MAX_IN_FLIGHT_CHUNKS);
+        AtomicBoolean failed = new AtomicBoolean(false);
+
+        try (FileChannel channel = fileManager.openRestoredFile(filename)) {
+            List<CompletableFuture<Boolean>> restorations = new ArrayList<>();
+
+            for (Manifest.Chunk chunk : manifest.getChunks()) {
+                /* Do not bother fetching the remaining chunks if one of them already failed. */
+                if (failed.get())
+                    break;
+
+                inFlightChunks.acquireUninterruptibly();
+                restorations.add(getChunk(manifest, chunk)
+                        .thenApplyAsync(content -> restoreChunk(channel, chunk, content), restoreThreadPool)
+                        .whenComplete((restored, e) -> {
+                            if (e != null || !restored)
+                                failed.set(true);
+
+                            inFlightChunks.release();
+                        }));
+            }
+
+            allSucceeded(restorations).join();
+        }
+
+        return !failed.get();
+    }
+
+    /**
+     * Fetches an encrypted chunk. If the chunks of the manifest are erasure-coded, every fragment of the chunk is
+     * fetched, and the chunk is rebuilt from the first ones that arrive, as soon as there are enough of them.
+     * Fragments that turn out not to be stored anymore, as their owner failed, are stored again once rebuilt, by the
+     * node that took over their key.
+     *
+     * @param manifest
+     * @param chunk
+     * @return a future completed with the chunk, or with null if it could not be found.
+     */
+    private CompletableFuture<byte[]> getChunk(Manifest manifest, Manifest.Chunk chunk) {
+        if (!manifest.isErasureCoded())
+            return dht.get(chunk.getKey());
+
+        ReedSolomon coder = new ReedSolomon(manifest.getDataFragments(), manifest.getParityFragments());
+        List<BigInteger> keys = chunk.getFragmentKeys();
+        List<CompletableFuture<byte[]>> fetches = new ArrayList<>();
+        byte[][] fragments = new byte[keys.size()][];
+        int[] received = {0};
+        int[] unavailable = {0};
+        CompletableFuture<byte[][]> enoughFragments = new CompletableFuture<>();
+
+        for (int i = 0; i < keys.size(); i++) {
+            int index = i;
+            CompletableFuture<byte[]> fetch = dht.fetch(keys.get(i));
+
+            fetch.whenComplete((fragment, e) -> {
+                synchronized (fragments) {
+                    if (enoughFragments.isDone())
+                        return;
+
+                    if (fragment != null) {
+                        fragments[index] = fragment;
+                        if (++received[0] == manifest.getDataFragments())
+                            enoughFragments.complete(fragments.clone());
+                    } else if (++unavailable[0] > manifest.getParityFragments()) {
+                        enoughFragments.complete(null);
+                    }
+                }
+            });
+
+            fetches.add(fetch);
+        }
+
+        return enoughFragments.thenApplyAsync(available -> {
+            if (available == null)
+                return null;
+
+            byte[] content;
+            try {
+                content = coder.decode(available);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Fragments of chunk with key " + DatatypeConverter.printHexBinary(chunk.getKey().toByteArray()) + " are corrupted.");
+                return null;
+            }
+
+            for (int i = 0; i < keys.size(); i++) {
+                BigInteger fragmentKey = keys.get(i);
+                byte[] rebuilt = available[i];
+
+                fetches.get(i).thenAccept(fragment -> {
+                    if (fragment == null)
+                        dht.insertFragment(fragmentKey, rebuilt);
+                });
+            }
+
+            return content;
+        }, restoreThreadPool);
+    }
+
+    /**
+     * Decrypts and writes a single fetched chunk.
+     *
+     * @param channel
+     * @param chunk
+     * @param content
+     * @return
+     */
+    private boolean restoreChunk(FileChannel channel, Manifest.Chunk chunk, byte[] content) {
+        if (content == null) {
+            System.err.println("Chunk with key " + DatatypeConverter.printHexBinary(chunk.getKey().toByteArray()) + " not found.");
+            return false;
+        }
+
+        try {
+            fileManager.saveRestoredChunk(channel, chunk.getOffset(), Encryption.decrypt(content));
+        } catch (DecryptionFailedException | BadPaddingException e) {
+            System.err.println("Attempted decryption with wrong key. Restore failed...");
+            return false;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        return true;
+    }
+
     /**
      *
      * Starts the Delete Protocol of the file with the given key.
+     * If the key refers to a manifest, all of its chunks are deleted first, and the manifest only once they all are,
+     * so that the chunks can still be found if the delete fails.
      * @param hexKey
      * @return
      */
     @Override
     public boolean delete(String hexKey) {
         BigInteger key = new BigInteger(DatatypeConverter.parseHexBinary(hexKey));
-        boolean ret = dht.delete(key);
+
+        byte[] content;
+        try {
+            content = dht.fetch(key).join();
+        } catch (CompletionException e) {
+            System.err.println("File stored with key " + hexKey + " could not be fetched. Delete failed...");
+            return false;
+        }
+
+        if (content == null) {
+            System.err.println("File stored with key " + hexKey + " not found.");
+            return false;
+        }
+
+        Manifest manifest;
+        try {
+            manifest = Manifest.fromByteArray(Encryption.decrypt(content));
+        } catch (DecryptionFailedException | BadPaddingException e) {
+            System.err.println("Attempted decryption with wrong key. Delete failed...");
+            return false;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        if (manifest != null && !deleteChunks(manifest)) {
+            System.err.println("Chunks of the file stored with key " + hexKey + " could not be deleted. Delete failed...");
+            return false;
+        }
+
+        if (!dht.delete(key).join())
+            return false;
+
         System.out.println("File stored with key " + hexKey + " deleted successfully.");
-        return ret;
+        return true;
+    }
+
+    /**
+     * Deletes the chunks, or fragments, of the given manifest. Only the deletions that failed are retried, as each
+     * successful one releases a reference to a value that may be shared with other files.
+     *
+     * @param manifest
+     * @return true if all of them were deleted.
+     */
+    private boolean deleteChunks(Manifest manifest) {
+        List<BigInteger> keys = new ArrayList<>();
+        for (Manifest.Chunk chunk : manifest.getChunks())
+            keys.addAll(chunk.getStoredKeys());
+
+        for (int attempt = 0; attempt < OPERATION_MAX_FAILED_ATTEMPTS && !keys.isEmpty(); attempt++) {
+            List<CompletableFuture<Boolean>> deletions = new ArrayList<>();
+            for (BigInteger chunkKey : keys)
+                deletions.add(dht.delete(chunkKey));
+
+            List<BigInteger> failedKeys = new ArrayList<>();
+            for (int i = 0; i < keys.size(); i++)
+                if (!deletions.get(i).join())
+                    failedKeys.add(keys.get(i));
+
+            keys = failedKeys;
+        }
+
+        return keys.isEmpty();
     }
 
     /**
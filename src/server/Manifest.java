@@ -0,0 +1,225 @@
+package server;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Describes a file that was backed up in chunks. The manifest is stored in the DHT like any other value,
+ * and the key it is stored with is the one handed to the user.
+ * Chunks are either stored as values, which are replicated, or erasure-coded into fragments, each stored as a value
+ * of its own that is not replicated, with keys chosen when the chunk was backed up.
+ */
+public class Manifest implements Serializable {
+    /* Kept from before erasure coding was introduced, so that older manifests can still be read. */
+    private static final long serialVersionUID = -398591529534569238L;
+    /* Written before the serialized manifest, followed by the version of its format. */
+    private static final byte[] MAGIC = {'M', 'N', 'F', 'T', 1};
+    /* Start of any serialized object, which is how manifests written before MAGIC was introduced begin. */
+    private static final byte[] LEGACY_MAGIC = {(byte) 0xAC, (byte) 0xED};
+
+    private final ArrayList<Chunk> chunks = new ArrayList<>();
+    private long size = 0;
+    /* Fragments each chunk was erasure-coded into, or none if the chunks were replicated. */
+    private final int dataFragments;
+    private final int parityFragments;
+
+    /**
+     * Creates the manifest of a file whose chunks are replicated.
+     */
+    Manifest() {
+        this(0, 0);
+    }
+
+    /**
+     * Creates the manifest of a file whose chunks are erasure-coded.
+     *
+     * @param dataFragments
+     * @param parityFragments
+     */
+    Manifest(int dataFragments, int parityFragments) {
+        this.dataFragments = dataFragments;
+        this.parityFragments = parityFragments;
+    }
+
+    /**
+     * Appends a chunk with the given key and length to the end of the file.
+     *
+     * @param key
+     * @param length
+     */
+    void addChunk(BigInteger key, int length) {
+        addChunk(key, length, null);
+    }
+
+    /**
+     * Appends a chunk with the given key and length to the end of the file.
+     *
+     * @param key
+     * @param length
+     * @param fragmentKeys keys of the fragments of the chunk, or null if it is replicated
+     */
+    void addChunk(BigInteger key, int length, List<BigInteger> fragmentKeys) {
+        chunks.add(new Chunk(key, size, length, fragmentKeys == null ? null : new ArrayList<>(fragmentKeys)));
+        size += length;
+    }
+
+    /**
+     * Gets the chunks in file order.
+     *
+     * @return
+     */
+    List<Chunk> getChunks() {
+        return Collections.unmodifiableList(chunks);
+    }
+
+    /**
+     * Gets the size of the original file.
+     *
+     * @return
+     */
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Checks if the chunks were erasure-coded rather than replicated.
+     *
+     * @return
+     */
+    boolean isErasureCoded() {
+        return dataFragments > 0;
+    }
+
+    int getDataFragments() {
+        return dataFragments;
+    }
+
+    int getParityFragments() {
+        return parityFragments;
+    }
+
+    /**
+     * Serializes the manifest so it can be stored in the DHT, preceded by MAGIC so that it can be told apart from
+     * the content of a file.
+     *
+     * @return
+     * @throws IOException
+     */
+    byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        byteArrayOutputStream.write(MAGIC);
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
+        objectOutputStream.writeObject(this);
+        objectOutputStream.close();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * Reads a manifest from the given content.
+     * Only content that starts with MAGIC, or with LEGACY_MAGIC for older manifests, is deserialized, and only the
+     * classes a manifest is made of are accepted, as the content may have been written by any node.
+     *
+     * @param content
+     * @return the manifest, or null if the content is not a manifest.
+     */
+    static Manifest fromByteArray(byte[] content) {
+        int offset;
+        if (startsWith(content, MAGIC))
+            offset = MAGIC.length;
+        else if (startsWith(content, LEGACY_MAGIC))
+            offset = 0;
+        else
+            return null;
+
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(content, offset, content.length - offset);
+        try (ObjectInputStream objectInputStream = new ManifestInputStream(inputStream)) {
+            Object object = objectInputStream.readObject();
+            return object instanceof Manifest ? (Manifest) object : null;
+        } catch (IOException | ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static boolean startsWith(byte[] content, byte[] prefix) {
+        return content.length >= prefix.length && Arrays.equals(Arrays.copyOf(content, prefix.length), prefix);
+    }
+
+    /**
+     * Stream that only deserializes the classes a manifest is made of.
+     */
+    private static class ManifestInputStream extends ObjectInputStream {
+        private static final Set<String> ALLOWED_CLASSES = new HashSet<>(Arrays.asList(
+                Manifest.class.getName(),
+                Chunk.class.getName(),
+                ArrayList.class.getName(),
+                BigInteger.class.getName(),
+                Number.class.getName(),
+                byte[].class.getName()));
+
+        ManifestInputStream(InputStream inputStream) throws IOException {
+            super(inputStream);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass description) throws IOException, ClassNotFoundException {
+            if (!ALLOWED_CLASSES.contains(description.getName()))
+                throw new InvalidClassException(description.getName(), "Not part of a manifest.");
+
+            return super.resolveClass(description);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+            throw new InvalidClassException("Proxies are not part of a manifest.");
+        }
+    }
+
+    static class Chunk implements Serializable {
+        /* Kept from before erasure coding was introduced, so that older manifests can still be read. */
+        private static final long serialVersionUID = -1551054153916459824L;
+
+        private final BigInteger key;
+        private final long offset;
+        private final int length;
+        /* Data fragments followed by parity fragments, or null if the chunk is replicated. */
+        private final ArrayList<BigInteger> fragmentKeys;
+
+        Chunk(BigInteger key, long offset, int length, ArrayList<BigInteger> fragmentKeys) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+            this.fragmentKeys = fragmentKeys;
+        }
+
+        BigInteger getKey() {
+            return key;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        List<BigInteger> getFragmentKeys() {
+            return Collections.unmodifiableList(fragmentKeys);
+        }
+
+        /**
+         * Gets the keys the chunk is stored with: its fragments' if it is erasure-coded, or its own otherwise.
+         *
+         * @return
+         */
+        List<BigInteger> getStoredKeys() {
+            return fragmentKeys == null ? Collections.singletonList(key) : getFragmentKeys();
+        }
+    }
+}
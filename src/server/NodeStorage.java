@@ -0,0 +1,378 @@
+package server;
+
+import server.communication.Payload;
+import server.utils.MerkleTree;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Values and replicas stored by a single node. Every virtual node hosted by a server has its own storage,
+ * so that a node handing keys over to another node of the same server does not touch the other's values.
+ * Fragments of erasure-coded values are kept apart from the other values, as they are not replicated.
+ */
+public class NodeStorage {
+    private static final String REPLICAS_DIR = "Replicas";
+    private static final String STORED_FILES_DIR = "StoredFiles";
+    private static final String FRAGMENTS_DIR = "Fragments";
+
+    private final Path replicasDir;
+    private final SegmentStore storedFiles;
+    private final SegmentStore fragments;
+    private final ConcurrentHashMap<BigInteger, SegmentStore> replicaStores = new ConcurrentHashMap<>();
+
+    NodeStorage(Path directory) throws IOException {
+        replicasDir = directory.resolve(REPLICAS_DIR);
+        storedFiles = new SegmentStore(directory.resolve(STORED_FILES_DIR));
+        fragments = new SegmentStore(directory.resolve(FRAGMENTS_DIR));
+        openReplicaStores();
+    }
+
+    /**
+     * Opens the store of every replica owner found on disk.
+     *
+     * @throws IOException
+     */
+    private void openReplicaStores() throws IOException {
+        File[] ownerDirs = replicasDir.toFile().listFiles(File::isDirectory);
+        if (ownerDirs == null)
+            return;
+
+        for (File ownerDir : ownerDirs)
+            replicaStores.put(new BigInteger(ownerDir.getName()), new SegmentStore(ownerDir.toPath()));
+    }
+
+    /**
+     * Gets the replica store of the given owner, creating it if needed.
+     *
+     * @param ownerId
+     * @return
+     * @throws IOException
+     */
+    private SegmentStore getReplicaStore(BigInteger ownerId) throws IOException {
+        try {
+            return replicaStores.computeIfAbsent(ownerId, id -> {
+                try {
+                    return new SegmentStore(replicasDir.resolve(id.toString()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Stores the given replica in the store of its owner, along with the reference count its owner keeps.
+     *
+     * @param ownerId
+     * @param key
+     * @param content
+     * @param references
+     * @param onStored   run once the replica is stored, before the store of the owner can be destroyed, so that
+     *                   the replicas the caller keeps track of agree with the stored ones
+     * @return the payload backed by the stored replica.
+     * @throws IOException
+     */
+    public Payload storeReplica(BigInteger ownerId, BigInteger key, Payload content, int references,
+                                Runnable onStored) throws IOException {
+        try {
+            /* The replicas of the owner may be dropped while this one is being stored, in which case
+             * a new store is opened for it. */
+            while (true) {
+                SegmentStore replicas = getReplicaStore(ownerId);
+                synchronized (replicas) {
+                    Payload replica = replicas.putIfNotDestroyed(key, content, references);
+                    if (replica != null) {
+                        onStored.run();
+                        return replica;
+                    }
+                }
+
+                replicaStores.remove(ownerId, replicas);
+            }
+        } finally {
+            content.release();
+        }
+    }
+
+    /**
+     * Turns a replica into a stored file, with the replica's reference count, when this node takes over the keys
+     * of the replica's owner.
+     *
+     * @param ownerId
+     * @param key
+     * @return the payload backed by the stored file.
+     * @throws IOException
+     */
+    public Payload promoteReplica(BigInteger ownerId, BigInteger key) throws IOException {
+        SegmentStore replicas = getReplicaStore(ownerId);
+        Payload replica = replicas.get(key);
+        if (replica == null)
+            throw new FileNotFoundException("Replica with key " + DatatypeConverter.printHexBinary(key.toByteArray()) + " not found.");
+
+        Payload value = storedFiles.put(key, replica);
+        storedFiles.setReferences(key, replicas.getReferences(key));
+        return value;
+    }
+
+    /**
+     * Gets the replica with the given key, kept for the given owner.
+     *
+     * @param ownerId
+     * @param key
+     * @return the payload backed by the replica, or null if it is not stored.
+     */
+    public Payload getReplica(BigInteger ownerId, BigInteger key) {
+        SegmentStore replicas = replicaStores.get(ownerId);
+        return replicas == null ? null : replicas.get(key);
+    }
+
+    /**
+     * Gets the Merkle tree of the keys of the replicas kept for the given owner.
+     *
+     * @param ownerId
+     * @return the tree, or null if no replicas are kept for the owner.
+     */
+    public MerkleTree getReplicaTree(BigInteger ownerId) {
+        SegmentStore replicas = replicaStores.get(ownerId);
+        return replicas == null ? null : replicas.getTree();
+    }
+
+    /**
+     * Deletes the replica with the given key.
+     *
+     * @param ownerId
+     * @param key
+     * @param onDeleted run before the replica is deleted, while no replica of the owner can be stored
+     */
+    public void deleteReplica(BigInteger ownerId, BigInteger key, Runnable onDeleted) {
+        SegmentStore replicas = replicaStores.get(ownerId);
+        if (replicas == null) {
+            onDeleted.run();
+            return;
+        }
+
+        synchronized (replicas) {
+            onDeleted.run();
+
+            try {
+                replicas.delete(key);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Deletes all the replicas of the given owner.
+     *
+     * @param ownerId
+     */
+    public void deleteReplicas(BigInteger ownerId) {
+        deleteReplicas(ownerId, () -> {
+        });
+    }
+
+    /**
+     * Deletes all the replicas of the given owner.
+     *
+     * @param ownerId
+     * @param onDeleted run before the replicas are deleted, while no replica of the owner can be stored
+     */
+    public void deleteReplicas(BigInteger ownerId, Runnable onDeleted) {
+        boolean[] deleted = {false};
+
+        /* The store is destroyed while it is still mapped, so that a new store for the same owner is not
+         * created in its directory until its files are gone. */
+        replicaStores.computeIfPresent(ownerId, (id, replicas) -> {
+            synchronized (replicas) {
+                onDeleted.run();
+                deleted[0] = true;
+
+                try {
+                    replicas.destroy();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            return null;
+        });
+
+        if (!deleted[0])
+            onDeleted.run();
+    }
+
+    /**
+     * Gets the keys of the replicas stored on disk, grouped by owner.
+     *
+     * @return
+     */
+    public ConcurrentHashMap<BigInteger, Set<BigInteger>> getReplicaKeys() {
+        ConcurrentHashMap<BigInteger, Set<BigInteger>> replicas = new ConcurrentHashMap<>();
+
+        replicaStores.forEach((ownerId, store) -> {
+            if (store.keys().isEmpty())
+                return;
+
+            Set<BigInteger> keys = ConcurrentHashMap.newKeySet();
+            keys.addAll(store.keys());
+            replicas.put(ownerId, keys);
+        });
+
+        return replicas;
+    }
+
+    /**
+     * Stores the given payload, appending it to the stored files' segments.
+     *
+     * @param key
+     * @param content
+     * @return the payload backed by the stored value.
+     * @throws IOException
+     */
+    public Payload storeFile(BigInteger key, Payload content) throws IOException {
+        try {
+            return storedFiles.put(key, content);
+        } finally {
+            content.release();
+        }
+    }
+
+    /**
+     * Gets the stored value with the given key.
+     *
+     * @param key
+     * @return the payload backed by the stored value, or null if the key is not stored.
+     */
+    public Payload getStoredFile(BigInteger key) {
+        return storedFiles.get(key);
+    }
+
+    /**
+     * Gets the keys of the stored values.
+     *
+     * @return
+     */
+    public Set<BigInteger> getStoredKeys() {
+        return storedFiles.keys();
+    }
+
+    /**
+     * Stores the given fragment of an erasure-coded value.
+     *
+     * @param key
+     * @param content
+     * @return the payload backed by the stored fragment.
+     * @throws IOException
+     */
+    public Payload storeFragment(BigInteger key, Payload content) throws IOException {
+        try {
+            return fragments.put(key, content);
+        } finally {
+            content.release();
+        }
+    }
+
+    /**
+     * Gets the stored fragment with the given key.
+     *
+     * @param key
+     * @return the payload backed by the stored fragment, or null if the key is not stored.
+     */
+    public Payload getFragment(BigInteger key) {
+        return fragments.get(key);
+    }
+
+    /**
+     * Gets the keys of the stored fragments.
+     *
+     * @return
+     */
+    public Set<BigInteger> getFragmentKeys() {
+        return fragments.keys();
+    }
+
+    /**
+     * Gets the Merkle tree of the keys of the stored values.
+     *
+     * @return
+     */
+    public MerkleTree getStoredKeysTree() {
+        return storedFiles.getTree();
+    }
+
+    /**
+     * Gets the reference count of the stored value or fragment with the given key.
+     *
+     * @param key
+     * @return
+     */
+    public int getReferences(BigInteger key) {
+        return fragments.get(key) != null ? fragments.getReferences(key) : storedFiles.getReferences(key);
+    }
+
+    /**
+     * Persists the reference count of the stored value or fragment with the given key.
+     *
+     * @param key
+     * @param count
+     */
+    public void setReferences(BigInteger key, int count) {
+        try {
+            storedFiles.setReferences(key, count);
+            fragments.setReferences(key, count);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Rebuilds the indexes of the stored values, fragments and replicas from the segments left by the previous run.
+     *
+     * @param executor executor on which the segments are scanned.
+     * @throws IOException
+     */
+    void recover(ExecutorService executor) throws IOException {
+        storedFiles.recover(executor);
+        fragments.recover(executor);
+
+        for (SegmentStore replicas : replicaStores.values())
+            replicas.recover(executor);
+    }
+
+    /**
+     * Reclaims the space used by deleted values, fragments and replicas.
+     */
+    public void compact() {
+        try {
+            storedFiles.compact();
+            fragments.compact();
+
+            for (SegmentStore replicas : replicaStores.values())
+                replicas.compact();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    public void delete(BigInteger key) {
+        try {
+            if (!storedFiles.delete(key))
+                fragments.delete(key);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,564 @@
+package server;
+
+import server.communication.Payload;
+import server.utils.MerkleTree;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Append-only store of values. Values are appended as records to large segment files and an index
+ * keeps the location of the latest value of each key. Deleting a key appends a tombstone, and
+ * compaction rewrites the live records of mostly dead segments so their space can be reclaimed.
+ * Each key may also have a reference count, stored in its own records, which defaults to 1.
+ * <p>
+ * Record layout: header CRC (4 bytes), type (1 byte), key length (2 bytes), key, value length (8 bytes),
+ * value CRC (4 bytes), value. The header CRC covers every header field after it. The value of a record is on disk
+ * before its header, and recovery also checks the value CRC of reference counts.
+ * <p>
+ * The index is only rebuilt from existing segments by recover(), which must be called before the store is used.
+ * A Merkle tree of the indexed keys is kept up to date with the index, so that stores can be compared cheaply.
+ */
+class SegmentStore {
+    private static final long MAX_SEGMENT_SIZE = 256L * 1024 * 1024; // In bytes
+    private static final double COMPACTION_THRESHOLD = 0.5; // Minimum fraction of live bytes
+    private static final String SEGMENT_EXTENSION = ".segment";
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024; // In bytes
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte REFERENCES = 3;
+    private static final int FIXED_HEADER_SIZE = 4 + 1 + 2 + 8 + 4;
+
+    private final Path directory;
+    private final ConcurrentHashMap<BigInteger, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<BigInteger, Record> references = new ConcurrentHashMap<>();
+    private final MerkleTree tree = new MerkleTree();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final List<Path> retiredSegments = new ArrayList<>();
+    private Segment activeSegment;
+    private boolean destroyed = false;
+
+    /**
+     * Opens the store in the given directory.
+     *
+     * @param directory
+     * @throws IOException
+     */
+    SegmentStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        File[] files = directory.toFile().listFiles((dir, name) -> name.endsWith(SEGMENT_EXTENSION));
+        if (files != null)
+            for (File file : files)
+                segments.put(segmentId(file.toPath()), new Segment(file.toPath()));
+
+        activeSegment = segments.isEmpty()
+                ? createSegment(0)
+                : segments.lastEntry().getValue();
+    }
+
+    /**
+     * Rebuilds the index from the existing segments. Segments are scanned in parallel on the given executor,
+     * and their records are then applied in order.
+     *
+     * @param executor
+     * @throws IOException
+     */
+    synchronized void recover(ExecutorService executor) throws IOException {
+        List<Future<List<Record>>> scans = new ArrayList<>();
+        for (Segment segment : segments.values())
+            scans.add(executor.submit(() -> {
+                List<Record> records = new ArrayList<>();
+                segment.validSize = scan(segment, records::add);
+                return records;
+            }));
+
+        Iterator<Future<List<Record>>> scan = scans.iterator();
+        for (Segment segment : segments.values()) {
+            try {
+                for (Record record : scan.next().get())
+                    apply(record);
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("Could not scan segment " + segment.path + ".", e);
+            }
+
+            if (segment.validSize < segment.size) {
+                System.err.println("Segment " + segment.path + " is corrupted after offset " + segment.validSize + ".");
+
+                /* Only the last segment can have been interrupted by a crash, so that is where writing resumes. */
+                if (segment == activeSegment) {
+                    segment.channel.truncate(segment.validSize);
+                    segment.size = segment.validSize;
+                }
+            }
+        }
+    }
+
+    private static int segmentId(Path path) {
+        String filename = path.getFileName().toString();
+        return Integer.parseInt(filename.substring(0, filename.length() - SEGMENT_EXTENSION.length()));
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        Segment segment = new Segment(directory.resolve(String.format("%08d", id) + SEGMENT_EXTENSION));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Applies a record read from a segment to the index.
+     *
+     * @param record
+     */
+    private void apply(Record record) {
+        switch (record.type) {
+            case PUT:
+                Location previous = index.put(record.key, record.location);
+                if (previous != null)
+                    markDead(previous);
+                else
+                    tree.add(record.key);
+                break;
+            case REFERENCES:
+                Record previousReferences = references.put(record.key, record);
+                if (previousReferences != null)
+                    markDead(previousReferences.location);
+                break;
+            case DELETE:
+                removeFromIndex(record.key);
+                return;
+        }
+
+        record.location.segment.liveBytes += record.location.recordLength;
+    }
+
+    private void removeFromIndex(BigInteger key) {
+        Location previous = index.remove(key);
+        if (previous != null) {
+            markDead(previous);
+            tree.remove(key);
+        }
+
+        Record previousReferences = references.remove(key);
+        if (previousReferences != null)
+            markDead(previousReferences.location);
+    }
+
+    /**
+     * Visits the valid records of a segment in order.
+     *
+     * @param segment
+     * @param visitor
+     * @return the offset where the valid records end.
+     * @throws IOException
+     */
+    private long scan(Segment segment, RecordVisitor visitor) throws IOException {
+        long position = 0;
+        ByteBuffer fixedHeader = ByteBuffer.allocate(FIXED_HEADER_SIZE);
+
+        while (position + FIXED_HEADER_SIZE <= segment.size) {
+            fixedHeader.clear();
+            fixedHeader.limit(7);
+            readFully(segment.channel, fixedHeader, position);
+
+            int headerChecksum = fixedHeader.getInt(0);
+            byte type = fixedHeader.get(4);
+            int keyLength = fixedHeader.getShort(5) & 0xFFFF;
+            int headerSize = FIXED_HEADER_SIZE + keyLength;
+
+            if ((type != PUT && type != DELETE && type != REFERENCES) || keyLength == 0 || position + headerSize > segment.size)
+                break;
+
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            readFully(segment.channel, header, position);
+
+            CRC32 crc = new CRC32();
+            crc.update(header.array(), 4, headerSize - 4);
+            if ((int) crc.getValue() != headerChecksum)
+                break;
+
+            byte[] key = Arrays.copyOfRange(header.array(), 7, 7 + keyLength);
+            long valueLength = header.getLong(7 + keyLength);
+            int valueChecksum = header.getInt(15 + keyLength);
+            long recordLength = headerSize + valueLength;
+
+            if (valueLength < 0 || position + recordLength > segment.size)
+                break;
+
+            Location location = new Location(segment, position, headerSize, valueLength, valueChecksum);
+            int count = 0;
+            if (type == REFERENCES) {
+                if (valueLength != 4)
+                    break;
+
+                ByteBuffer value = ByteBuffer.allocate(4);
+                readFully(segment.channel, value, location.valueOffset);
+
+                /* The count is restored as is, so a torn one must not be mistaken for a valid record. */
+                CRC32 valueCrc = new CRC32();
+                valueCrc.update(value.array());
+                if ((int) valueCrc.getValue() != valueChecksum)
+                    break;
+
+                count = value.getInt(0);
+            }
+
+            visitor.visit(new Record(type, new BigInteger(key), location, count));
+            position += recordLength;
+        }
+
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new IOException("Unexpected end of segment.");
+        }
+    }
+
+    /**
+     * Appends a record to the active segment and forces it to disk.
+     *
+     * @param type
+     * @param key
+     * @param value
+     * @return
+     * @throws IOException
+     */
+    private Location append(byte type, BigInteger key, Payload value) throws IOException {
+        if (activeSegment.size >= MAX_SEGMENT_SIZE)
+            activeSegment = createSegment(segments.lastKey() + 1);
+
+        Segment segment = activeSegment;
+        byte[] keyBytes = key.toByteArray();
+        int headerSize = FIXED_HEADER_SIZE + keyBytes.length;
+        long valueLength = value == null ? 0 : value.getLength();
+        long start = segment.size;
+        CRC32 valueCrc = new CRC32();
+
+        try {
+            if (value != null) {
+                /* The value is written and forced to disk before the header is written, so that a header found
+                 * on disk always describes a value that is there. A write interrupted by a crash leaves at most
+                 * a header that fails its check. */
+                segment.channel.position(start + headerSize);
+                OutputStream outputStream = new BufferedOutputStream(
+                        new CheckedOutputStream(Channels.newOutputStream(segment.channel), valueCrc), WRITE_BUFFER_SIZE);
+                value.transferTo(outputStream);
+                outputStream.flush();
+
+                if (segment.channel.position() != start + headerSize + valueLength)
+                    throw new IOException("Value length does not match the payload length.");
+
+                segment.channel.force(false);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            header.putInt(0);
+            header.put(type);
+            header.putShort((short) keyBytes.length);
+            header.put(keyBytes);
+            header.putLong(valueLength);
+            header.putInt((int) valueCrc.getValue());
+
+            CRC32 headerCrc = new CRC32();
+            headerCrc.update(header.array(), 4, headerSize - 4);
+            header.putInt(0, (int) headerCrc.getValue());
+            header.flip();
+
+            while (header.hasRemaining())
+                segment.channel.write(header, start + header.position());
+
+            segment.channel.force(false);
+        } catch (IOException e) {
+            segment.channel.truncate(start);
+            throw e;
+        }
+
+        Location location = new Location(segment, start, headerSize, valueLength, (int) valueCrc.getValue());
+        segment.size = start + location.recordLength;
+
+        if (type != DELETE)
+            segment.liveBytes += location.recordLength;
+
+        return location;
+    }
+
+    private void markDead(Location location) {
+        location.segment.liveBytes -= location.recordLength;
+    }
+
+    /**
+     * Stores the given value, replacing the previous value of the key.
+     *
+     * @param key
+     * @param value
+     * @return the payload backed by the stored value.
+     * @throws IOException
+     */
+    synchronized Payload put(BigInteger key, Payload value) throws IOException {
+        Location location = append(PUT, key, value);
+        Location previous = index.put(key, location);
+
+        if (previous != null)
+            markDead(previous);
+        else
+            tree.add(key);
+
+        return location.toPayload();
+    }
+
+    /**
+     * Stores the given value with the given reference count, unless the store was destroyed.
+     *
+     * @param key
+     * @param value
+     * @param references
+     * @return the payload backed by the stored value, or null if the store was destroyed.
+     * @throws IOException
+     */
+    synchronized Payload putIfNotDestroyed(BigInteger key, Payload value, int references) throws IOException {
+        if (destroyed)
+            return null;
+
+        Payload stored = put(key, value);
+        setReferences(key, references);
+        return stored;
+    }
+
+    /**
+     * Gets the value of the given key.
+     *
+     * @param key
+     * @return the payload backed by the stored value, or null if the key is not stored.
+     */
+    Payload get(BigInteger key) {
+        Location location = index.get(key);
+        return location == null ? null : location.toPayload();
+    }
+
+    /**
+     * Deletes the given key.
+     *
+     * @param key
+     * @return false if the key was not stored.
+     * @throws IOException
+     */
+    synchronized boolean delete(BigInteger key) throws IOException {
+        Location previous = index.get(key);
+        if (previous == null)
+            return false;
+
+        append(DELETE, key, null);
+        removeFromIndex(key);
+        return true;
+    }
+
+    /**
+     * Gets the reference count of the given key.
+     *
+     * @param key
+     * @return
+     */
+    int getReferences(BigInteger key) {
+        Record record = references.get(key);
+        return record == null ? 1 : record.references;
+    }
+
+    /**
+     * Sets the reference count of the given key. It is kept until the key is deleted.
+     *
+     * @param key
+     * @param count
+     * @throws IOException
+     */
+    synchronized void setReferences(BigInteger key, int count) throws IOException {
+        if (!index.containsKey(key) || getReferences(key) == count)
+            return;
+
+        Location location = append(REFERENCES, key, Payload.of(ByteBuffer.allocate(4).putInt(count).array()));
+        Record previous = references.put(key, new Record(REFERENCES, key, location, count));
+
+        if (previous != null)
+            markDead(previous.location);
+    }
+
+    /**
+     * Gets the Merkle tree of the keys in the store, which is kept up to date as keys are stored and deleted.
+     *
+     * @return
+     */
+    MerkleTree getTree() {
+        return tree;
+    }
+
+    /**
+     * Gets the keys in the store. The returned set is a live view.
+     *
+     * @return
+     */
+    Set<BigInteger> keys() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /**
+     * Rewrites the live records of every segment whose fraction of live bytes fell below COMPACTION_THRESHOLD
+     * into the active segment. The compacted segments are deleted on the next compaction, so that values
+     * being read from them when they are compacted can still be read.
+     *
+     * @throws IOException
+     */
+    synchronized void compact() throws IOException {
+        for (Path retired : retiredSegments)
+            Files.deleteIfExists(retired);
+        retiredSegments.clear();
+
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment == activeSegment || segment.liveBytes >= segment.size * COMPACTION_THRESHOLD)
+                continue;
+
+            int id = segmentId(segment.path);
+            boolean olderSegmentsExist = segments.firstKey() < id;
+
+            scan(segment, (record) -> {
+                if (record.type == PUT) {
+                    if (!record.location.equals(index.get(record.key)))
+                        return;
+
+                    try {
+                        index.put(record.key, append(PUT, record.key, record.location.toPayload()));
+                    } catch (IOException e) {
+                        /* The record is corrupted, so there is nothing worth keeping. */
+                        System.err.println("Dropping corrupted value: " + e.getMessage());
+                        index.remove(record.key);
+                        tree.remove(record.key);
+                    }
+                } else if (record.type == REFERENCES) {
+                    Record current = references.get(record.key);
+                    if (current == null || !record.location.equals(current.location))
+                        return;
+
+                    Location location = append(REFERENCES, record.key, record.location.toPayload());
+                    references.put(record.key, new Record(REFERENCES, record.key, location, record.references));
+                } else if (olderSegmentsExist && !index.containsKey(record.key)) {
+                    /* The tombstone must survive while an older segment may still hold a value for the key. */
+                    append(DELETE, record.key, null);
+                }
+            });
+
+            segments.remove(id);
+            segment.channel.close();
+            retiredSegments.add(segment.path);
+        }
+    }
+
+    /**
+     * Closes the store and deletes all of its segments.
+     *
+     * @throws IOException
+     */
+    synchronized void destroy() throws IOException {
+        destroyed = true;
+
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        }
+
+        for (Path retired : retiredSegments)
+            Files.deleteIfExists(retired);
+
+        segments.clear();
+        retiredSegments.clear();
+        index.clear();
+        references.clear();
+        tree.clear();
+        Files.deleteIfExists(directory);
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private long size;
+        private long validSize;
+        private long liveBytes = 0;
+
+        Segment(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+
+    private static class Location {
+        private final Segment segment;
+        private final long recordOffset;
+        private final long recordLength;
+        private final long valueOffset;
+        private final long valueLength;
+        private final int valueChecksum;
+
+        Location(Segment segment, long recordOffset, int headerSize, long valueLength, int valueChecksum) {
+            this.segment = segment;
+            this.recordOffset = recordOffset;
+            this.recordLength = headerSize + valueLength;
+            this.valueOffset = recordOffset + headerSize;
+            this.valueLength = valueLength;
+            this.valueChecksum = valueChecksum;
+        }
+
+        Payload toPayload() {
+            return Payload.of(segment.path, valueOffset, valueLength, valueChecksum);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Location
+                    && ((Location) o).segment == segment
+                    && ((Location) o).recordOffset == recordOffset;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(recordOffset);
+        }
+    }
+
+    private static class Record {
+        private final byte type;
+        private final BigInteger key;
+        private final Location location;
+        private final int references;
+
+        Record(byte type, BigInteger key, Location location, int references) {
+            this.type = type;
+            this.key = key;
+            this.location = location;
+            this.references = references;
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(Record record) throws IOException;
+    }
+}
@@ -11,10 +11,15 @@ import java.net.MulticastSocket;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class Server {
+    /* Servers with more resources can host more virtual nodes, and so take a larger share of the keys. */
+    private static final int VIRTUAL_NODES = Math.max(Integer.getInteger("virtualNodes", 1), 1);
 
     public static void main(String... args) throws IOException, NoSuchAlgorithmException {
         if (args.length != 2 && args.length != 4) {
@@ -32,16 +37,38 @@ public class Server {
             return;
         }
 
-        Node node;
+        List<Node> nodes = new ArrayList<>();
+        FileManager fileManager;
         try {
-            node = new Node(address, port);
+            fileManager = new FileManager(new NodeInfo(address, port).getId());
+
+            for (int i = 0; i < VIRTUAL_NODES; i++)
+                nodes.add(new Node(address, port, i, fileManager));
         } catch (IOException | NoSuchAlgorithmException e) {
             e.printStackTrace();
             System.err.println("Could not create node, aborting...");
             return;
         }
 
-        Mailman.init(node, port);
+        try {
+            long start = System.nanoTime();
+            int recoveredValues = 0;
+
+            fileManager.recover();
+            for (Node node : nodes) {
+                node.recover();
+                recoveredValues += node.getDistributedHashTable().getStorage().getStoredKeys().size();
+            }
+
+            System.out.println("Recovered " + recoveredValues + " values in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Could not recover stored values, aborting...");
+            return;
+        }
+
+        Mailman.init(nodes, port);
+        Node node = nodes.get(0);
 
         try {
             LocateRegistry.getRegistry().rebind(args[0], new InitiatorPeer(node.getDistributedHashTable()));
@@ -49,7 +76,7 @@ public class Server {
             System.out.println("Could not connect to rmiregistry. TestApp will not be available on this server.");
         }
 
-        System.out.println("Node running on " + address.getHostAddress() + ":" + port + " with id " + Integer.toUnsignedString(node.getInfo().getId()) + " and access point " + args[0] + ".");
+        System.out.println("Node running on " + address.getHostAddress() + ":" + port + " with id " + node.getInfo().getId() + " and access point " + args[0] + ".");
 
         /* Joining an existing network */
         if (args.length == 4) {
@@ -67,8 +94,18 @@ public class Server {
             }
         }
 
+        /* The other virtual nodes join the network through the first one */
+        for (Node virtualNode : nodes.subList(1, nodes.size())) {
+            System.out.println("Joining virtual node with id " + virtualNode.getInfo().getId() + "...");
+            if (!virtualNode.bootstrap(node.getInfo())) {
+                System.err.println("Virtual node bootstrapping failed. Exiting..");
+                return;
+            }
+        }
+
         System.out.println("Joined the network successfully.");
-        node.initiateStabilization();
+        for (Node virtualNode : nodes)
+            virtualNode.initiateStabilization();
     }
 
     /**
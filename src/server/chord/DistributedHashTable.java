@@ -1,15 +1,19 @@
 package server.chord;
 
 import server.FileManager;
+import server.NodeStorage;
+import server.communication.Payload;
+import server.utils.MerkleTree;
 
 import javax.xml.bind.DatatypeConverter;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 
 import static server.utils.Utils.between;
 
@@ -17,13 +21,15 @@ public class DistributedHashTable {
     static final int OPERATION_TIMEOUT = 30; //In seconds
     public static final int MAXIMUM_HOPS = 8;
     private final Node node;
-    private final ConcurrentHashMap<BigInteger, byte[]> localValues = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<BigInteger, Integer> referenceCounts = new ConcurrentHashMap<>();
     private final FileManager fileManager;
+    private final NodeStorage storage;
 
-    DistributedHashTable(Node node) throws IOException, NoSuchAlgorithmException {
+    DistributedHashTable(Node node, FileManager fileManager) throws IOException {
 
         this.node = node;
-        this.fileManager = new FileManager(node.getInfo().getId());
+        this.fileManager = fileManager;
+        this.storage = fileManager.getStorage(node.getInfo().getId());
     }
 
     /**
@@ -32,34 +38,55 @@ public class DistributedHashTable {
      * @param key
      * @param value
      * @return
-     * @throws InterruptedException
-     * @throws ExecutionException
-     * @throws TimeoutException
      */
+    public CompletableFuture<Boolean> insert(BigInteger key, byte[] value) {
+        return node.insert(key, value, false);
+    }
 
-    public boolean insert(BigInteger key, byte[] value) throws InterruptedException, ExecutionException, TimeoutException {
-        return node.insert(key, value).get(OPERATION_TIMEOUT, TimeUnit.SECONDS);
+    /**
+     * Starts the process of insertion of a fragment of an erasure-coded value. Fragments are only stored by the
+     * owner of their key, as the other fragments of the value, owned by other nodes, make up for it.
+     *
+     * @param key
+     * @param fragment
+     * @return
+     */
+    public CompletableFuture<Boolean> insertFragment(BigInteger key, byte[] fragment) {
+        return node.insert(key, fragment, true);
     }
 
     /**
      * Starts the process of getting the value with the this key to this node.
      *
      * @param key
+     * @return the value, or null if it could not be found.
+     */
+    public CompletableFuture<byte[]> get(BigInteger key) {
+        return node.get(key).exceptionally(e -> {
+            reportFailure("Get", key, e);
+            return null;
+        });
+    }
+
+    /**
+     * Same as get(key), but fails if the value could not be fetched, instead of completing with null as when the
+     * value is not stored.
+     *
+     * @param key
      * @return
      */
-    public byte[] get(BigInteger key) {
-        CompletableFuture<byte[]> get = node.get(key);
+    public CompletableFuture<byte[]> fetch(BigInteger key) {
+        return node.get(key);
+    }
 
-        try {
-            return get.get(OPERATION_TIMEOUT, TimeUnit.SECONDS);
-        } catch (TimeoutException e) {
-            e.printStackTrace();
-            System.err.println("Get operation for key " + DatatypeConverter.printHexBinary(key.toByteArray()) + " timed out. Please try again.");
-            return null;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
+    /**
+     * Finds the node that owns the given key.
+     *
+     * @param key
+     * @return
+     */
+    public CompletableFuture<NodeInfo> findOwner(BigInteger key) {
+        return node.findOwner(key);
     }
 
     /**
@@ -68,50 +95,154 @@ public class DistributedHashTable {
      * @param key
      * @return
      */
-    public boolean delete(BigInteger key) {
-        CompletableFuture<Boolean> delete = node.delete(key);
-
-        try {
-            return delete.get(OPERATION_TIMEOUT, TimeUnit.SECONDS);
-        } catch (TimeoutException e) {
-            e.printStackTrace();
-            System.err.println("Delete operation for key " + DatatypeConverter.printHexBinary(key.toByteArray()) + "timed out. Please try again.");
-            return false;
-        } catch (Exception e) {
-            e.printStackTrace();
+    public CompletableFuture<Boolean> delete(BigInteger key) {
+        return node.delete(key).exceptionally(e -> {
+            reportFailure("Delete", key, e);
             return false;
-        }
+        });
+    }
+
+    private static void reportFailure(String operation, BigInteger key, Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+
+        if (cause instanceof TimeoutException)
+            System.err.println(operation + " operation for key " + DatatypeConverter.printHexBinary(key.toByteArray()) + " timed out. Please try again.");
+        else
+            cause.printStackTrace();
     }
 
 
     /**
-     * It stores locally and in the "LocalValues" Concurrent Hash Map the value with the given key.
+     * It stores the value with the given key in the file manager's segments, which keep the index of locations.
      *
      * @param key
      * @param value
+     * @param fragment true if the value is a fragment of an erasure-coded value, which is not replicated
      * @return
      */
-    boolean storeKey(BigInteger key, byte[] value) {
-        localValues.put(key, value);
-
+    boolean storeKey(BigInteger key, Payload value, boolean fragment) {
         try {
-            fileManager.storeFile(key, value);
+            if (fragment)
+                storage.storeFragment(key, value);
+            else
+                storage.storeFile(key, value);
         } catch (IOException e) {
             e.printStackTrace();
             return false;
         }
 
+        /* References added while the value was being stored could not be persisted yet. */
+        Integer references = referenceCounts.get(key);
+        if (references != null)
+            storage.setReferences(key, references);
+
         return true;
     }
 
     /**
-     * It deletes locally and in the "LocalValues" Concurrent Hash Map the value with the given key.
+     * Adds a reference to the given key. Keys are derived from the content, so a key that is
+     * already referenced does not need to be stored or replicated again.
+     *
+     * @param key
+     * @return true if this is the first reference to the key.
+     */
+    boolean addReference(BigInteger key) {
+        return referenceCounts.compute(key, (k, count) -> {
+            int references = count == null ? 1 : count + 1;
+            if (references > 1)
+                storage.setReferences(k, references);
+
+            return references;
+        }) == 1;
+    }
+
+    /**
+     * Checks if the given key has any references, that is, if its value is stored and durable.
+     *
+     * @param key
+     * @return
+     */
+    boolean isReferenced(BigInteger key) {
+        return referenceCounts.containsKey(key);
+    }
+
+    /**
+     * Gets the reference count of the given key, which is sent along with its value when the value is moved to or
+     * replicated in another node.
+     *
+     * @param key
+     * @return
+     */
+    int getReferences(BigInteger key) {
+        return referenceCounts.getOrDefault(key, 1);
+    }
+
+    /**
+     * Gets the reference counts of the given keys.
+     *
+     * @param keys
+     * @return
+     */
+    HashMap<BigInteger, Integer> getReferences(Set<BigInteger> keys) {
+        HashMap<BigInteger, Integer> references = new HashMap<>();
+        for (BigInteger key : keys)
+            references.put(key, getReferences(key));
+
+        return references;
+    }
+
+    /**
+     * Sets the reference count of a value received from another node. If the value was already referenced here,
+     * the larger count is kept, as a value that is still referenced must not be deleted.
+     *
+     * @param key
+     * @param count
+     */
+    private void restoreReferences(BigInteger key, int count) {
+        referenceCounts.compute(key, (k, current) -> {
+            int references = current == null ? count : Math.max(current, count);
+            storage.setReferences(k, references);
+            return references;
+        });
+    }
+
+    /**
+     * Removes a reference to the given key.
+     *
+     * @param key
+     * @return true if no references to the key remain.
+     */
+    private boolean removeReference(BigInteger key) {
+        return referenceCounts.computeIfPresent(key, (k, count) -> {
+            if (count == 1)
+                return null;
+
+            storage.setReferences(k, count - 1);
+            return count - 1;
+        }) == null;
+    }
+
+    /**
+     * Rebuilds the reference counts of the local values, once the storage has been recovered.
+     */
+    void recover() {
+        for (BigInteger key : storage.getStoredKeys())
+            referenceCounts.put(key, storage.getReferences(key));
+
+        for (BigInteger key : storage.getFragmentKeys())
+            referenceCounts.put(key, storage.getReferences(key));
+    }
+
+    /**
+     * It deletes locally the value with the given key, unless other references to it remain.
      * @param key
      * @return
      */
     boolean deleteKey(BigInteger key) {
-        localValues.remove(key);
-        fileManager.delete(key);
+        if (!removeReference(key))
+            return true;
+
+        storage.delete(key);
 
         return true;
     }
@@ -129,8 +260,22 @@ public class DistributedHashTable {
         sb.append(node.toString());
 
         sb.append("\n\nKeys stored:\n");
-        localValues.forEach((key, value) -> {
+        forEachLocalValue((key, value) -> {
             sb.append(DatatypeConverter.printHexBinary(key.toByteArray()));
+            sb.append("  size: ");
+            sb.append(value.getLength());
+            sb.append("  references: ");
+            sb.append(referenceCounts.getOrDefault(key, 1));
+            sb.append("\n");
+        });
+
+        sb.append("\nFragments stored:\n");
+        forEachFragment((key, value) -> {
+            sb.append(DatatypeConverter.printHexBinary(key.toByteArray()));
+            sb.append("  size: ");
+            sb.append(value.getLength());
+            sb.append("  references: ");
+            sb.append(referenceCounts.getOrDefault(key, 1));
             sb.append("\n");
         });
 
@@ -143,9 +288,9 @@ public class DistributedHashTable {
      * @param node
      * @return
      */
-    ConcurrentHashMap<BigInteger, byte[]> getKeysBelongingTo(NodeInfo node) {
-        ConcurrentHashMap<BigInteger, byte[]> predecessorKeys = new ConcurrentHashMap<>();
-        localValues.forEach((key, value) -> {
+    ConcurrentHashMap<BigInteger, Payload> getKeysBelongingTo(NodeInfo node) {
+        ConcurrentHashMap<BigInteger, Payload> predecessorKeys = new ConcurrentHashMap<>();
+        forEachLocalValue((key, value) -> {
             if (!between(node, this.node.getInfo(), key))
                 predecessorKeys.put(key, value);
         });
@@ -153,6 +298,22 @@ public class DistributedHashTable {
         return predecessorKeys;
     }
 
+    /**
+     * Gets the fragments that are stored locally and belong to the given node.
+     *
+     * @param node
+     * @return
+     */
+    ConcurrentHashMap<BigInteger, Payload> getFragmentsBelongingTo(NodeInfo node) {
+        ConcurrentHashMap<BigInteger, Payload> predecessorFragments = new ConcurrentHashMap<>();
+        forEachFragment((key, value) -> {
+            if (!between(node, this.node.getInfo(), key))
+                predecessorFragments.put(key, value);
+        });
+
+        return predecessorFragments;
+    }
+
 
     /** It gets the fileManager.
      *
@@ -162,60 +323,144 @@ public class DistributedHashTable {
         return fileManager;
     }
 
+    /**
+     * Gets the storage of this node's values and replicas.
+     *
+     * @return
+     */
+    public NodeStorage getStorage() {
+        return storage;
+    }
+
 
     /**
-     * It stores locally and in the "localValues" Concurrent Hash Map the given keys and values.
+     * It stores the given keys and values locally.
      * @param keys
+     * @param fragments
+     * @param references reference counts of the keys and fragments
      */
-    void storeKeys(ConcurrentHashMap<BigInteger, byte[]> keys) {
-        localValues.putAll(keys);
+    void storeKeys(ConcurrentHashMap<BigInteger, Payload> keys, ConcurrentHashMap<BigInteger, Payload> fragments,
+                   Map<BigInteger, Integer> references) {
+        for (Map.Entry<BigInteger, Payload> entry : keys.entrySet()) {
+            try {
+                storage.storeFile(entry.getKey(), entry.getValue());
+                restoreReferences(entry.getKey(), references.getOrDefault(entry.getKey(), 1));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        for (Map.Entry<BigInteger, Payload> entry : fragments.entrySet()) {
+            try {
+                storage.storeFragment(entry.getKey(), entry.getValue());
+                restoreReferences(entry.getKey(), references.getOrDefault(entry.getKey(), 1));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Takes over the replicas of a node that failed, turning them into values stored by this node.
+     *
+     * @param ownerId
+     * @param keys
+     * @return the values that were taken over.
+     */
+    ConcurrentHashMap<BigInteger, Payload> takeOverReplicas(BigInteger ownerId, Set<BigInteger> keys) {
+        ConcurrentHashMap<BigInteger, Payload> values = new ConcurrentHashMap<>();
 
-        for (Map.Entry<BigInteger, byte[]> entry : keys.entrySet()) {
+        for (BigInteger key : keys) {
             try {
-                fileManager.storeFile(entry.getKey(), entry.getValue());
+                values.put(key, storage.promoteReplica(ownerId, key));
+                restoreReferences(key, storage.getReferences(key));
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+
+        storage.deleteReplicas(ownerId);
+        return values;
     }
 
     /**
-     * It gets the value stored locally corresponding to the given key.
+     * It gets the value or fragment stored locally corresponding to the given key.
      * @param key
      * @return
      */
-    byte[] getLocalValue(BigInteger key) {
-        return localValues.get(key);
+    Payload getLocalValue(BigInteger key) {
+        Payload value = storage.getStoredFile(key);
+        return value != null ? value : storage.getFragment(key);
     }
 
     /**
-     * It gets the Key set.
+     * Gets the given keys that are not stored locally.
      *
+     * @param keys
      * @return
      */
-    HashSet<BigInteger> getKeySet() {
-        return new HashSet<>(Collections.list(localValues.keys()));
+    HashSet<BigInteger> getMissingKeys(Set<BigInteger> keys) {
+        HashSet<BigInteger> missingKeys = new HashSet<>();
+        for (BigInteger key : keys)
+            if (storage.getStoredFile(key) == null)
+                missingKeys.add(key);
+
+        return missingKeys;
     }
 
     /**
-     * It gets the "localValues" Concurrent Hash Map.
+     * It gets all the values stored locally.
      *
      * @return
      */
-    ConcurrentHashMap<BigInteger, byte[]> getLocalValues() {
-        return localValues;
+    ConcurrentHashMap<BigInteger, Payload> getLocalValues() {
+        ConcurrentHashMap<BigInteger, Payload> values = new ConcurrentHashMap<>();
+        forEachLocalValue(values::put);
+        return values;
+    }
+
+    /**
+     * Runs the given action for every value stored locally. Values are not read, only located.
+     *
+     * @param action
+     */
+    private void forEachLocalValue(BiConsumer<BigInteger, Payload> action) {
+        for (BigInteger key : storage.getStoredKeys()) {
+            Payload value = storage.getStoredFile(key);
+
+            /* The value may have been deleted in the meantime. */
+            if (value != null)
+                action.accept(key, value);
+        }
+    }
+
+    /**
+     * Runs the given action for every fragment stored locally. Fragments are not read, only located.
+     *
+     * @param action
+     */
+    private void forEachFragment(BiConsumer<BigInteger, Payload> action) {
+        for (BigInteger key : storage.getFragmentKeys()) {
+            Payload value = storage.getFragment(key);
+
+            /* The fragment may have been deleted in the meantime. */
+            if (value != null)
+                action.accept(key, value);
+        }
     }
 
     /**
-     * It gets the differences bewteen the locally stored keys and the given keys.
+     * It gets the values stored locally that fall in the given leaves of the Merkle tree and are not among the
+     * given keys.
      *
      * @param keys
+     * @param leaves
      * @return
      */
-    ConcurrentHashMap<BigInteger, byte[]> getDifference(HashSet<BigInteger> keys) {
-        ConcurrentHashMap<BigInteger, byte[]> difference = new ConcurrentHashMap<>();
-        localValues.forEach((key, value) -> {
-            if (keys.contains(key))
+    ConcurrentHashMap<BigInteger, Payload> getDifference(Set<BigInteger> keys, Set<Integer> leaves) {
+        ConcurrentHashMap<BigInteger, Payload> difference = new ConcurrentHashMap<>();
+        forEachLocalValue((key, value) -> {
+            if (!keys.contains(key) && leaves.contains(MerkleTree.getLeaf(key)))
                 difference.put(key, value);
         });
         return difference;
@@ -0,0 +1,162 @@
+package server.chord;
+
+import server.communication.Mailman;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static server.chord.Node.ID_BITS;
+import static server.chord.Node.MAX_NODES;
+import static server.utils.Utils.between;
+import static server.utils.Utils.getNodeFromKey;
+
+/**
+ * Several known nodes for each finger interval, so that lookups can be routed through the closest one in the network
+ * instead of the one closest to the start of the interval. Interval i holds the nodes from 2^i up to 2^(i+1) past
+ * this node, and any of them roughly halves the distance to keys past the interval.
+ */
+class FingerCandidates {
+    private static final int CANDIDATES_PER_FINGER = 3;
+
+    private final NodeInfo self;
+    private final List<List<NodeInfo>> candidates = new ArrayList<>(ID_BITS);
+    /* Node that may replace the slowest candidate of a full interval, once its round trip time is known. */
+    private final NodeInfo[] challengers = new NodeInfo[ID_BITS];
+
+    FingerCandidates(NodeInfo self) {
+        this.self = self;
+
+        for (int i = 0; i < ID_BITS; i++)
+            candidates.add(new ArrayList<>(CANDIDATES_PER_FINGER));
+    }
+
+    /**
+     * Adds the given node to the candidates of its interval. If the interval is full, the node challenges the
+     * slowest candidate, which it replaces if it turns out to be faster.
+     *
+     * @param node
+     */
+    void add(NodeInfo node) {
+        int index = getInterval(node);
+        if (index < 0)
+            return;
+
+        List<NodeInfo> interval = candidates.get(index);
+        synchronized (interval) {
+            if (interval.contains(node))
+                return;
+
+            if (interval.size() < CANDIDATES_PER_FINGER) {
+                interval.add(node);
+                return;
+            }
+
+            NodeInfo slowest = interval.stream().max(byRoundTripTime()).get();
+            if (byRoundTripTime().compare(node, slowest) < 0)
+                interval.set(interval.indexOf(slowest), node);
+            else if (getRoundTripTime(node) < 0)
+                challengers[index] = node;
+        }
+    }
+
+    /**
+     * Forgets the given node, after it failed.
+     *
+     * @param node
+     */
+    void remove(NodeInfo node) {
+        int index = getInterval(node);
+        if (index < 0)
+            return;
+
+        List<NodeInfo> interval = candidates.get(index);
+        synchronized (interval) {
+            interval.remove(node);
+            if (node.equals(challengers[index]))
+                challengers[index] = null;
+        }
+    }
+
+    /**
+     * Gets the fastest candidate that precedes the key, from the interval closest to it.
+     *
+     * @param key the key being searched
+     * @return the best next node, or null if no candidate precedes the key.
+     */
+    NodeInfo getNextBestNode(BigInteger key) {
+        BigInteger keyOwner = getNodeFromKey(key);
+
+        for (int i = ID_BITS - 1; i >= 0; i--) {
+            List<NodeInfo> interval = candidates.get(i);
+            NodeInfo best = null;
+
+            synchronized (interval) {
+                for (NodeInfo candidate : interval)
+                    if (between(self.getId(), keyOwner, candidate.getId())
+                            && (best == null || byRoundTripTime().compare(candidate, best) < 0))
+                        best = candidate;
+            }
+
+            if (best != null)
+                return best;
+        }
+
+        return null;
+    }
+
+    /**
+     * Settles the challenges whose round trip time was measured, and gets the nodes whose round trip time should be
+     * measured again.
+     *
+     * @return
+     */
+    List<NodeInfo> getNodesToMeasure() {
+        List<NodeInfo> nodes = new ArrayList<>();
+
+        for (int i = 0; i < ID_BITS; i++) {
+            List<NodeInfo> interval = candidates.get(i);
+
+            synchronized (interval) {
+                NodeInfo challenger = challengers[i];
+                if (challenger != null && getRoundTripTime(challenger) >= 0) {
+                    challengers[i] = null;
+                    add(challenger);
+                }
+
+                nodes.addAll(interval);
+                if (challengers[i] != null)
+                    nodes.add(challengers[i]);
+            }
+        }
+
+        return nodes;
+    }
+
+    /**
+     * Gets the index of the interval the given node belongs to.
+     *
+     * @param node
+     * @return the index, or -1 for this node.
+     */
+    private int getInterval(NodeInfo node) {
+        return node.getId().subtract(self.getId()).mod(MAX_NODES).bitLength() - 1;
+    }
+
+    /**
+     * Orders nodes by their round trip time, fastest first. Nodes that were not measured yet come last.
+     *
+     * @return
+     */
+    private static Comparator<NodeInfo> byRoundTripTime() {
+        return Comparator.comparingLong(node -> {
+            long roundTripTime = getRoundTripTime(node);
+            return roundTripTime < 0 ? Long.MAX_VALUE : roundTripTime;
+        });
+    }
+
+    private static long getRoundTripTime(NodeInfo node) {
+        return Mailman.getRoundTripTime(node);
+    }
+}
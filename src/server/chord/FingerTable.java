@@ -2,6 +2,7 @@ package server.chord;
 
 import server.communication.Mailman;
 import server.communication.OperationManager;
+import server.communication.operations.FindNodeResultOperation;
 import server.communication.operations.LookupOperation;
 import server.communication.operations.NotifyOperation;
 import server.exceptions.KeyNotFoundException;
@@ -9,21 +10,38 @@ import server.utils.SynchronizedFixedLinkedList;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static server.chord.Node.MAX_NODES;
+import static server.chord.Node.ID_BITS;
 import static server.chord.Node.OPERATION_MAX_FAILED_ATTEMPTS;
 import static server.utils.Utils.*;
 
 public class FingerTable {
-    private static final int FINGER_TABLE_SIZE = (int) (Math.log(MAX_NODES) / Math.log(2));
+    private static final int FINGER_TABLE_SIZE = ID_BITS;
     private static final int NUM_SUCCESSORS = 5;
     static final int LOOKUP_TIMEOUT = 3000; // In milliseconds
-
-    final OperationManager<BigInteger, NodeInfo> ongoingLookups = new OperationManager<>();
+    /* Number of nodes queried at a time by an iterative lookup, and of nodes given back by each of them. */
+    public static final int ALPHA = 3;
+    private static final int QUERY_TIMEOUT = 1000; // In milliseconds
+    /* Lookups are forwarded from node to node by default. With -DlookupMode=iterative, the origin queries each hop itself. */
+    private static final boolean ITERATIVE_LOOKUP = "iterative".equalsIgnoreCase(System.getProperty("lookupMode"));
+
+    /* A lookup is retried by waiting for its result again, so it only expires once every attempt timed out. */
+    final OperationManager<BigInteger, NodeInfo> ongoingLookups =
+            new OperationManager<>(OPERATION_MAX_FAILED_ATTEMPTS * LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
+    final OperationManager<Long, FindNodeResultOperation> ongoingQueries =
+            new OperationManager<>(QUERY_TIMEOUT, TimeUnit.MILLISECONDS);
+    private final AtomicLong queryNumbers = new AtomicLong();
+    private final OwnerCache ownerCache = new OwnerCache();
+    private final FingerCandidates fingerCandidates;
 
     private NodeInfo predecessor;
     private final NodeInfo[] fingers;
@@ -35,6 +53,7 @@ public class FingerTable {
         setPredecessor(self);
         fingers = new NodeInfo[FINGER_TABLE_SIZE];
         successors = new SynchronizedFixedLinkedList<>(NUM_SUCCESSORS);
+        fingerCandidates = new FingerCandidates(self);
 
         for (int i = 0; i < fingers.length; i++)
             setFinger(i, self);
@@ -51,13 +70,18 @@ public class FingerTable {
     }
 
     /**
-     * Gets the next best node that precedes the key.
+     * Gets the next best node that precedes the key. Of the nodes known in the finger interval closest to the key,
+     * the one with the lowest round trip time is chosen.
      *
      * @param key the key being searched
      * @return {NodeInfo} of the best next node.
      */
     NodeInfo getNextBestNode(BigInteger key) {
-        int keyOwner = Integer.remainderUnsigned(key.intValue(), MAX_NODES);
+        NodeInfo candidate = fingerCandidates.getNextBestNode(key);
+        if (candidate != null)
+            return candidate;
+
+        BigInteger keyOwner = getNodeFromKey(key);
         for (int i = fingers.length - 1; i >= 0; i--) {
             if (between(self.getId(), keyOwner, fingers[i].getId()))
                 return fingers[i];
@@ -66,6 +90,51 @@ public class FingerTable {
         return getSuccessor();
     }
 
+    /**
+     * Gets the known nodes that precede the key, closest to it first.
+     *
+     * @param key   the key being searched
+     * @param count maximum number of nodes
+     * @return the closest preceding nodes, or the successor if no node is known to precede the key.
+     */
+    List<NodeInfo> getClosestPrecedingNodes(BigInteger key, int count) {
+        BigInteger keyOwner = getNodeFromKey(key);
+        TreeSet<NodeInfo> closest = new TreeSet<>(IterativeLookup.closestTo(key));
+
+        for (NodeInfo finger : fingers)
+            if (between(self.getId(), keyOwner, finger.getId()) && !finger.getId().equals(keyOwner))
+                closest.add(finger);
+
+        synchronized (successors) {
+            for (int i = 0; i < successors.size(); i++)
+                if (between(self.getId(), keyOwner, successors.get(i).getId()) && !successors.get(i).getId().equals(keyOwner))
+                    closest.add(successors.get(i));
+        }
+
+        closest.remove(self);
+        if (closest.isEmpty())
+            return Collections.singletonList(getSuccessor());
+
+        List<NodeInfo> nodes = new ArrayList<>(count);
+        for (NodeInfo node : closest) {
+            if (nodes.size() >= count)
+                break;
+
+            nodes.add(node);
+        }
+
+        return nodes;
+    }
+
+    /**
+     * Gets a number that tells apart the queries of iterative lookups.
+     *
+     * @return
+     */
+    long nextQueryNumber() {
+        return queryNumbers.incrementAndGet();
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -81,7 +150,7 @@ public class FingerTable {
         for (int i = 0; i < fingers.length; i++) {
             sb.append(i);
             sb.append("      ");
-            sb.append(Integer.remainderUnsigned((int) (self.getId() + Math.pow(2, i)), MAX_NODES));
+            sb.append(getFingerKey(self, i));
             sb.append("     ");
             sb.append(fingers[i] == null
                     ? "null"
@@ -111,8 +180,16 @@ public class FingerTable {
         if (!hasSuccessors())
             return;
 
-        for (int i = 0; i < FINGER_TABLE_SIZE; i++)
+        for (int i = 0; i < FINGER_TABLE_SIZE; i++) {
+            /* Most of the fingers of a large identifier space point to the same few nodes, so a finger whose key
+             * precedes the previous finger's node is that node, and does not need a lookup. */
+            if (i > 0 && !fingers[i - 1].equals(self) && between(self.getId(), fingers[i - 1].getId(), getFingerKey(self, i))) {
+                setFinger(i, fingers[i - 1]);
+                continue;
+            }
+
             getFinger(i);
+        }
     }
 
     /**
@@ -122,8 +199,8 @@ public class FingerTable {
      * @param index
      * @return
      */
-    private static int getFingerKey(NodeInfo node, int index) {
-        return addToNodeId(node.getId(), (int) Math.pow(2, index));
+    private static BigInteger getFingerKey(NodeInfo node, int index) {
+        return addToNodeId(node.getId(), BigInteger.ONE.shiftLeft(index));
     }
 
 
@@ -133,7 +210,7 @@ public class FingerTable {
      * @param index
      */
     private void getFinger(int index) {
-        BigInteger keyToLookup = BigInteger.valueOf(getFingerKey(self, index));
+        BigInteger keyToLookup = getFingerKey(self, index);
 
         int attempts = OPERATION_MAX_FAILED_ATTEMPTS;
         while (attempts > 0) {
@@ -156,14 +233,14 @@ public class FingerTable {
      * @param node node being compared
      */
     private void updateFingerTable(NodeInfo node) {
-        BigInteger keyEquivalent = BigInteger.valueOf(node.getId());
-
         for (int i = 0; i < fingers.length; i++) {
-            int lower = addToNodeId(self.getId(), (int) Math.pow(2, i) - 1);
-            if (between(lower, fingers[i].getId(), keyEquivalent) && !fingers[i].equals(node) && !self.equals(node))
+            BigInteger lower = addToNodeId(self.getId(), BigInteger.ONE.shiftLeft(i).subtract(BigInteger.ONE));
+            if (between(lower, fingers[i].getId(), node.getId()) && !fingers[i].equals(node) && !self.equals(node))
                 setFinger(i, node);
 
         }
+
+        fingerCandidates.add(node);
     }
 
     /**
@@ -175,6 +252,7 @@ public class FingerTable {
         updatePredecessor(node);
         updateSuccessors(node);
         updateFingerTable(node);
+        ownerCache.nodeJoined(node);
     }
 
     /**
@@ -255,7 +333,7 @@ public class FingerTable {
          * Insert the node in the correct position */
         synchronized (successors) {
             NodeInfo successor;
-            int nodeKey;
+            BigInteger nodeKey;
             if (successors.size() > 0) {
                 successor = successors.get(0);
                 nodeKey = node.getId();
@@ -268,7 +346,7 @@ public class FingerTable {
                 if (between(self, successor, nodeKey)) {
                     successors.add(0, node);
                 /* Send a lookup to successor. This will notify that I am his new predecessor. */
-                    lookupFrom(BigInteger.valueOf(successor.getId()), successor);
+                    lookupFrom(successor.getId(), successor);
                     return;
                 }
             }
@@ -309,6 +387,8 @@ public class FingerTable {
      * @param node
      */
     void informFingersOfFailure(NodeInfo node) {
+        fingerCandidates.remove(node);
+
         for (int i = fingers.length - 1; i >= 0; i--)
             if (fingers[i].equals(node)) {
                 setFinger(i, self);
@@ -347,9 +427,9 @@ public class FingerTable {
         int removedIndex = successors.remove(node);
 
         if (removedIndex == 0) {
-            lookup(BigInteger.valueOf(addToNodeId(self.getId(), 1)));
+            lookup(getSuccessorKey(self));
         } else if (removedIndex > 0) {
-            lookup(BigInteger.valueOf(addToNodeId(successors.last().getId(), 1)));
+            lookup(getSuccessorKey(successors.last()));
         }
 
         return removedIndex;
@@ -364,20 +444,27 @@ public class FingerTable {
      * @throws IOException
      */
     private CompletableFuture<NodeInfo> lookupFrom(BigInteger key, NodeInfo startingNode) {
-        CompletableFuture<NodeInfo> lookupResult = ongoingLookups.putIfAbsent(key);
+        OperationManager.Request<BigInteger, NodeInfo> lookup = ongoingLookups.putIfAbsent(key);
+
+        if (lookup != null)
+            return lookup.getFuture();
 
-        if (lookupResult != null)
-            return lookupResult;
+        lookup = ongoingLookups.get(key);
+        lookup.getFuture().thenAccept(owner -> ownerCache.put(key, owner));
 
-        lookupResult = ongoingLookups.get(key);
+        if (ITERATIVE_LOOKUP) {
+            new IterativeLookup(this, self, key, lookup.getId())
+                    .start(startingNode, keyBelongsToSuccessor(key) && getSuccessor().equals(startingNode));
+            return lookup.getFuture();
+        }
 
         try {
-            Mailman.sendOperation(startingNode, new LookupOperation(this, self, key, startingNode));
+            Mailman.sendOperation(startingNode, new LookupOperation(this, self, key, lookup.getId(), startingNode));
         } catch (Exception e) {
-            ongoingLookups.operationFailed(key, e);
+            ongoingLookups.operationFailed(lookup.getId(), e);
         }
 
-        return lookupResult;
+        return lookup.getFuture();
     }
 
 
@@ -394,6 +481,34 @@ public class FingerTable {
             return lookupFrom(key, getNextBestNode(key));
     }
 
+    /**
+     * Gets the owner of the given key, if it was found by a recent lookup.
+     *
+     * @param key
+     * @return the owner, or null if it is not known.
+     */
+    NodeInfo getCachedOwner(BigInteger key) {
+        return ownerCache.get(key);
+    }
+
+    /**
+     * Forgets the keys the given node was found to own, when it fails or turns out not to own them anymore.
+     *
+     * @param node
+     */
+    void informCacheOfFailure(NodeInfo node) {
+        ownerCache.remove(node);
+    }
+
+    /**
+     * Gets the nodes whose round trip time is used to choose between the nodes of a finger interval.
+     *
+     * @return
+     */
+    List<NodeInfo> getNodesToMeasure() {
+        return fingerCandidates.getNodesToMeasure();
+    }
+
     /**
      * Checks if the given key belongd to the Successor.
      *
@@ -412,7 +527,7 @@ public class FingerTable {
      * @return
      */
     boolean findSuccessors(NodeInfo bootstrapperNode) {
-        BigInteger successorKey = BigInteger.valueOf(addToNodeId(self.getId(), 1));
+        BigInteger successorKey = getSuccessorKey(self);
 
         for (int i = 0; i < NUM_SUCCESSORS; i++) {
             CompletableFuture<NodeInfo> successorLookup = lookupFrom(successorKey, bootstrapperNode);
@@ -432,7 +547,7 @@ public class FingerTable {
                 return false;
 
             try {
-                successorKey = BigInteger.valueOf(addToNodeId(getNthSuccessor(i).getId(), 1));
+                successorKey = getSuccessorKey(getNthSuccessor(i));
             } catch (IndexOutOfBoundsException e) {
                 /* This means that there is no Nth successor. As such, we treat it as a normal thing that only
                  * happens when the network has a number of nodes lower than NUM_SUCCESSORS. */
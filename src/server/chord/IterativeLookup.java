@@ -0,0 +1,171 @@
+package server.chord;
+
+import server.communication.Mailman;
+import server.communication.OperationManager;
+import server.communication.operations.FindNodeOperation;
+import server.communication.operations.FindNodeResultOperation;
+import server.exceptions.KeyNotFoundException;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static server.chord.FingerTable.ALPHA;
+import static server.chord.Node.MAX_NODES;
+import static server.utils.Utils.getNodeFromKey;
+
+/**
+ * Lookup driven by the node that started it, as opposed to the LookupOperation, which is forwarded from node to node.
+ * The origin queries up to ALPHA nodes at a time, closest to the key first, so a slow or failed node is routed
+ * around as soon as another one answers, instead of losing the whole lookup.
+ */
+class IterativeLookup {
+    private final FingerTable fingerTable;
+    private final NodeInfo self;
+    private final BigInteger key;
+    private final long requestId;
+    /* Nodes known to precede the key and not queried yet, closest to the key first. */
+    private final TreeSet<NodeInfo> candidates;
+    private final Set<NodeInfo> queried = new HashSet<>();
+    private int pendingQueries = 0;
+    private boolean finished = false;
+
+    IterativeLookup(FingerTable fingerTable, NodeInfo self, BigInteger key, long requestId) {
+        this.fingerTable = fingerTable;
+        this.self = self;
+        this.key = key;
+        this.requestId = requestId;
+        candidates = new TreeSet<>(closestTo(key));
+    }
+
+    /**
+     * Orders nodes by how closely they precede the given key.
+     *
+     * @param key
+     * @return
+     */
+    static Comparator<NodeInfo> closestTo(BigInteger key) {
+        BigInteger keyOwner = getNodeFromKey(key);
+        return Comparator.comparing((NodeInfo node) -> keyOwner.subtract(node.getId()).mod(MAX_NODES))
+                .thenComparing(NodeInfo::getId);
+    }
+
+    /**
+     * Starts the lookup at the given node.
+     *
+     * @param startingNode
+     * @param ownerQuery   true if the starting node is known to be the successor of the key
+     */
+    void start(NodeInfo startingNode, boolean ownerQuery) {
+        if (ownerQuery) {
+            synchronized (this) {
+                queried.add(startingNode);
+                pendingQueries++;
+            }
+
+            query(startingNode, true);
+            return;
+        }
+
+        synchronized (this) {
+            candidates.add(startingNode);
+            /* The starting node may be unknown to this node, as when joining, so it is only one of the candidates. */
+            for (NodeInfo node : fingerTable.getClosestPrecedingNodes(key, ALPHA))
+                if (!node.equals(self))
+                    candidates.add(node);
+        }
+
+        queryCandidates();
+    }
+
+    /**
+     * Queries the closest candidates, so that up to ALPHA queries are pending.
+     */
+    private void queryCandidates() {
+        List<NodeInfo> toQuery = new ArrayList<>();
+        boolean exhausted;
+
+        synchronized (this) {
+            while (!finished && pendingQueries < ALPHA && !candidates.isEmpty()) {
+                NodeInfo candidate = candidates.pollFirst();
+                if (queried.add(candidate)) {
+                    pendingQueries++;
+                    toQuery.add(candidate);
+                }
+            }
+
+            /* Every candidate was queried without reaching the successor of the key. */
+            exhausted = !finished && pendingQueries == 0;
+            if (exhausted)
+                finished = true;
+        }
+
+        if (exhausted) {
+            fingerTable.ongoingLookups.operationFailed(requestId, new KeyNotFoundException());
+            return;
+        }
+
+        for (NodeInfo node : toQuery)
+            query(node, false);
+    }
+
+    private void query(NodeInfo node, boolean ownerQuery) {
+        OperationManager<Long, FindNodeResultOperation> ongoingQueries = fingerTable.ongoingQueries;
+        long queryNumber = fingerTable.nextQueryNumber();
+
+        ongoingQueries.putIfAbsent(queryNumber);
+        OperationManager.Request<Long, FindNodeResultOperation> query = ongoingQueries.get(queryNumber);
+        query.getFuture().whenComplete((result, failure) -> onQueryFinished(ownerQuery, result, failure));
+
+        try {
+            Mailman.sendOperation(node, new FindNodeOperation(self, key, query.getId(), ownerQuery));
+        } catch (Exception e) {
+            ongoingQueries.operationFailed(query.getId(), e);
+        }
+    }
+
+    /**
+     * Handles the answer to a query, or its failure, querying the next candidates if the lookup is not over.
+     *
+     * @param ownerQuery
+     * @param result
+     * @param failure
+     */
+    private void onQueryFinished(boolean ownerQuery, FindNodeResultOperation result, Throwable failure) {
+        NodeInfo successorOfKey = null;
+
+        if (failure == null)
+            fingerTable.informAboutExistence(result.getOrigin());
+
+        synchronized (this) {
+            pendingQueries--;
+            if (finished)
+                return;
+
+            if (failure == null) {
+                if (ownerQuery) {
+                    finished = true;
+                } else if (result.isSuccessorOfKey()) {
+                    successorOfKey = result.getNodes().get(0);
+                    queried.add(successorOfKey);
+                    pendingQueries++;
+                } else {
+                    for (NodeInfo node : result.getNodes())
+                        if (!node.equals(self) && !queried.contains(node))
+                            candidates.add(node);
+                }
+            }
+        }
+
+        if (ownerQuery && failure == null)
+            fingerTable.ongoingLookups.operationFinished(requestId, result.getOrigin());
+        else if (successorOfKey != null)
+            query(successorOfKey, true);
+        else
+            queryCandidates();
+    }
+}
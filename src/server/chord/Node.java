@@ -1,54 +1,114 @@
 package server.chord;
 
+import server.FileManager;
 import server.communication.Mailman;
 import server.communication.Operation;
 import server.communication.OperationManager;
+import server.communication.Payload;
 import server.communication.operations.*;
 import server.exceptions.KeyNotFoundException;
+import server.utils.LatencyTracker;
+import server.utils.MerkleTree;
+import server.utils.ThreadPools;
 
 import javax.xml.bind.DatatypeConverter;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
-
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static server.FileManager.COMPACTION_PERIOD;
 import static server.chord.DistributedHashTable.OPERATION_TIMEOUT;
 import static server.chord.FingerTable.LOOKUP_TIMEOUT;
+import static server.utils.Utils.between;
+import static server.utils.Utils.getSuccessorKey;
 
 public class Node {
-    public static final int MAX_NODES = 128;
+    /* Identifiers have ID_BITS bits, up to the 160 bits of the SHA-1 hashes they are derived from. */
+    public static final int ID_BITS = Math.min(Integer.getInteger("idBits", 160), 160);
+    public static final BigInteger MAX_NODES = BigInteger.ONE.shiftLeft(ID_BITS);
     public static final int OPERATION_MAX_FAILED_ATTEMPTS = 3;
     private static final int REPLICATION_DEGREE = 3;
+    private static final int RETRY_DELAY = 500; // In milliseconds
+    /* Replicas are sent in batches of about this size, set with -DreplicationBatchSize. */
+    private static final long REPLICATION_BATCH_SIZE = Long.getLong("replicationBatchSize", 4 * 1024 * 1024); // In bytes
+    /* Batches sent before the first of them is acknowledged, set with -DreplicationWindow. */
+    private static final int REPLICATION_WINDOW = Math.max(1, Integer.getInteger("replicationWindow", 4));
+    /* Gets not answered within this percentile of the latency of recent gets are also sent to a replica. */
+    private static final double HEDGE_PERCENTILE = 95;
+    private static final long HEDGE_DEFAULT_DELAY = 100; // In milliseconds, until enough gets were timed
+    private static final long HEDGE_MIN_DELAY = 5; // In milliseconds
+    /* Copies of a value, counting the owner's, that must be stored before an insert succeeds. Set with -DwriteQuorum. */
+    private static final int WRITE_QUORUM = Math.max(1, Math.min(Integer.getInteger("writeQuorum", REPLICATION_DEGREE / 2 + 1), REPLICATION_DEGREE));
 
     private final NodeInfo self;
     private final FingerTable fingerTable;
     private final DistributedHashTable dht;
     private CompletableFuture<NodeInfo> ongoingPredecessorLookup;
 
-    public final OperationManager<Integer, Boolean> ongoingKeySendings = new OperationManager<>();
-
-    public final OperationManager<BigInteger, Boolean> ongoingDeletes = new OperationManager<>();
-    public final OperationManager<BigInteger, Boolean> ongoingInsertions = new OperationManager<>();
-    public final OperationManager<BigInteger, byte[]> ongoingGets = new OperationManager<>();
-
-    private final ConcurrentHashMap<Integer, ConcurrentHashMap<BigInteger, byte[]>> replicatedValues = new ConcurrentHashMap<>();
-    private final ExecutorService threadPool = Executors.newFixedThreadPool(10);
-    private final ScheduledExecutorService stabilizationExecutor = Executors.newScheduledThreadPool(5);
+    public final OperationManager<BigInteger, Boolean> ongoingKeySendings = new OperationManager<>(OPERATION_TIMEOUT, TimeUnit.SECONDS);
+
+    /* Inserts and deletes each add or release a reference, so their requests are keyed by operationNumbers
+     * rather than by the key of the value, and are never merged. */
+    public final OperationManager<Long, Boolean> ongoingDeletes = new OperationManager<>(OPERATION_TIMEOUT, TimeUnit.SECONDS);
+    public final OperationManager<Long, Boolean> ongoingInsertions = new OperationManager<>(OPERATION_TIMEOUT, TimeUnit.SECONDS);
+    public final OperationManager<BigInteger, byte[]> ongoingGets = new OperationManager<>(OPERATION_TIMEOUT, TimeUnit.SECONDS);
+    public final OperationManager<Long, Boolean> ongoingReplications = new OperationManager<>(OPERATION_TIMEOUT, TimeUnit.SECONDS);
+    private final AtomicLong replicationNumbers = new AtomicLong();
+    private final AtomicLong operationNumbers = new AtomicLong();
+    private final LatencyTracker getLatencies = new LatencyTracker();
+
+    /* Replicas are kept on disk, grouped by owner. Only their keys are kept in memory. */
+    private final ConcurrentHashMap<BigInteger, Set<BigInteger>> replicatedValues = new ConcurrentHashMap<>();
+    private final ExecutorService threadPool = ThreadPools.newThreadPool(10);
+    private final ScheduledExecutorService stabilizationExecutor = ThreadPools.newScheduledThreadPool(5);
+    /* Only schedules timeouts and retries, which are handed over to the thread pool. */
+    private final ScheduledExecutorService timer = ThreadPools.newScheduledThreadPool(1);
     private ConcurrentHashMap<BigInteger, Integer> unfinishedReplications = new ConcurrentHashMap<>();
+    /* Set while updateOwnKeysReplication() waits for the replicas it sent. */
+    private final AtomicBoolean replicatingUnfinished = new AtomicBoolean();
+    /* Keys being stored, with the future of their store, which inserts of the same key wait for. */
+    private final ConcurrentHashMap<BigInteger, CompletableFuture<Boolean>> ongoingStores = new ConcurrentHashMap<>();
+    /* Requests sent straight to a cached owner, with how to send them again if that owner redirects them. */
+    private final ConcurrentHashMap<Long, Runnable> directRequests = new ConcurrentHashMap<>();
 
     /**
-     * @param address Address of this server
-     * @param port    Port to start the service in
+     * @param address      Address of this server
+     * @param port         Port to start the service in
+     * @param virtualIndex Index of this node among the virtual nodes of the server
+     * @param fileManager  File manager shared by the virtual nodes of the server
      */
-    public Node(InetAddress address, int port) throws IOException, NoSuchAlgorithmException {
-        self = new NodeInfo(address, port);
+    public Node(InetAddress address, int port, int virtualIndex, FileManager fileManager) throws IOException, NoSuchAlgorithmException {
+        self = new NodeInfo(address, port, virtualIndex);
         fingerTable = new FingerTable(self);
         ongoingPredecessorLookup = null;
-        dht = new DistributedHashTable(this);
+        dht = new DistributedHashTable(this, fileManager);
+    }
+
+    /**
+     * Rebuilds the state of the values and replicas left on disk by the previous run, once the file manager
+     * has recovered them. Must be called before the node starts receiving operations.
+     */
+    public void recover() {
+        dht.recover();
+        replicatedValues.putAll(dht.getStorage().getReplicaKeys());
     }
 
     /**
@@ -174,6 +234,7 @@ public class Node {
      */
     public void initiateStabilization() {
         stabilizationExecutor.scheduleWithFixedDelay(this::stabilizationProtocol, 5, 5, TimeUnit.SECONDS);
+        stabilizationExecutor.scheduleWithFixedDelay(dht.getStorage()::compact, COMPACTION_PERIOD, COMPACTION_PERIOD, TimeUnit.SECONDS);
 
     }
 
@@ -182,28 +243,49 @@ public class Node {
      */
     private void stabilizationProtocol() {
         fingerTable.stabilizationProtocol();
+        measureRoundTrips();
         updateOwnKeysReplication();
         checkReplicasOwners();
     }
 
     /**
-     * Checks if the replica owner is alive and syncs the replicas with it.
+     * Pings the candidates of the finger intervals, so that lookups are routed through the closest ones.
+     * The answers update the round trip times kept by the Mailman.
+     */
+    private void measureRoundTrips() {
+        for (NodeInfo node : fingerTable.getNodesToMeasure())
+            send(node, new PingOperation(self, System.nanoTime()));
+    }
+
+    /**
+     * Checks if the replica owner is alive and syncs the replicas with it, starting by the root digest of their
+     * Merkle tree, so that only the replicas under the subtrees that differ are described to it.
      * If it is not alive, then insert all of its keys in the network.
      */
     private void checkReplicasOwners() {
-        for (Map.Entry<Integer, ConcurrentHashMap<BigInteger, byte[]>> entry : replicatedValues.entrySet()) {
+        for (BigInteger ownerId : replicatedValues.keySet()) {
+            MerkleTree tree = dht.getStorage().getReplicaTree(ownerId);
+            if (tree == null)
+                continue;
+
             NodeInfo owner = null;
             int attempts = OPERATION_MAX_FAILED_ATTEMPTS;
 
             while (attempts > 0) {
                 try {
-                    owner = fingerTable.lookup(BigInteger.valueOf(entry.getKey())).get(LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
+                    owner = fingerTable.lookup(ownerId).get(LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
+
+                    /* The owner has left, and its replicas are taken over when its failure is noticed. */
+                    if (!owner.getId().equals(ownerId))
+                        break;
 
                     Mailman.sendOperation(
                             owner,
                             new ReplicationSyncOperation(
                                     self,
-                                    new HashSet<>(Collections.list(entry.getValue().keys()))));
+                                    0,
+                                    new int[]{0},
+                                    new long[]{tree.getDigest(0, 0)}));
 
                     break;
                 } catch (TimeoutException | InterruptedException | ExecutionException ignored) {
@@ -225,63 +307,245 @@ public class Node {
     /**
      * This function is run periodically and ensures that the replication is
      * at least REPLICATION_DEGREE, if there are at least REPLICATION_DEGREE nodes
-     * in the network.
+     * in the network. The replicas are sent without waiting for them, and no
+     * other run starts until they are acknowledged.
      */
     private void updateOwnKeysReplication() {
+        if (unfinishedReplications.isEmpty() || !replicatingUnfinished.compareAndSet(false, true))
+            return;
+
+        replicateUnfinished(1).whenComplete((ignored, failure) -> replicatingUnfinished.set(false));
+    }
+
+    /**
+     * Sends the keys that are missing from the ith successor to it and, once they are acknowledged, goes on with
+     * the next successor.
+     *
+     * @param i
+     * @return
+     */
+    private CompletableFuture<Void> replicateUnfinished(int i) {
+        if (i >= REPLICATION_DEGREE || unfinishedReplications.isEmpty())
+            return CompletableFuture.completedFuture(null);
+
+        NodeInfo nthSuccessor;
+        try {
+            nthSuccessor = fingerTable.getNthSuccessor(i - 1);
+        } catch (IndexOutOfBoundsException e) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        /* Keys with a replication degree of i are still missing from the ith successor. */
+        HashMap<BigInteger, Payload> values = new HashMap<>();
         for (Map.Entry<BigInteger, Integer> entry : unfinishedReplications.entrySet()) {
-            for (int i = entry.getValue(); i < REPLICATION_DEGREE; i++)
-                ensureReplication(entry.getKey(), dht.getLocalValue(entry.getKey()));
+            if (entry.getValue() > i)
+                continue;
+
+            Payload value = dht.getLocalValue(entry.getKey());
+            if (value != null)
+                values.put(entry.getKey(), value);
+            else
+                unfinishedReplications.remove(entry.getKey());
         }
+
+        return replicateTo(values, nthSuccessor).thenCompose(replicated -> {
+            if (!replicated)
+                return CompletableFuture.completedFuture(null);
+
+            int degree = i + 1;
+            for (BigInteger key : values.keySet())
+                unfinishedReplications.computeIfPresent(key, (k, oldDegree) -> degree >= REPLICATION_DEGREE ? null : degree);
+
+            return replicateUnfinished(i + 1);
+        });
+    }
+
+    /**
+     * Marks the given keys as missing from the last successor that keeps their replicas, so that they are sent
+     * again by updateOwnKeysReplication().
+     *
+     * @param keys
+     */
+    private void replicateLater(Set<BigInteger> keys) {
+        for (BigInteger key : keys)
+            unfinishedReplications.merge(key, REPLICATION_DEGREE - 1, Math::min);
     }
 
     /**
      * Stores the key and the value.
+     * If the key is already stored, only its reference count is increased and
+     * neither storage nor replication happen again. If it is being stored, the
+     * reference is only added once the store finishes, and the value is stored
+     * again if that store failed.
+     *
+     * @param key
+     * @param value
+     * @param fragment true if the value is a fragment of an erasure-coded value, which is not replicated
+     * @return a future completed with true once WRITE_QUORUM copies of the value are stored.
+     */
+    public CompletableFuture<Boolean> storeKey(BigInteger key, Payload value, boolean fragment) {
+        CompletableFuture<Boolean> store = new CompletableFuture<>();
+        CompletableFuture<Boolean> ongoingStore = ongoingStores.putIfAbsent(key, store);
+        if (ongoingStore != null)
+            return ongoingStore.handle((stored, failure) -> null).thenCompose(ignored -> storeKey(key, value, fragment));
+
+        storeNewKey(key, value, fragment).whenComplete((stored, failure) -> {
+            ongoingStores.remove(key, store);
+
+            if (failure != null)
+                store.completeExceptionally(failure);
+            else
+                store.complete(stored);
+        });
+
+        return store;
+    }
+
+    /**
+     * Stores the key and the value, while no other store of the key is ongoing. The reference to the key is only
+     * counted once the value is durable, that is, once WRITE_QUORUM copies of it are stored. If that fails, the
+     * value is deleted, so that a failed insert leaves neither a reference nor an unreferenced value behind.
      *
      * @param key
      * @param value
+     * @param fragment
      * @return
      */
-    public boolean storeKey(BigInteger key, byte[] value) {
-        boolean result = dht.storeKey(key, value);
-        ensureReplication(key, value);
-        return result;
+    private CompletableFuture<Boolean> storeNewKey(BigInteger key, Payload value, boolean fragment) {
+        if (dht.isReferenced(key)) {
+            value.release();
+            dht.addReference(key);
+            updateReplicatedReferences(key);
+            return CompletableFuture.completedFuture(true);
+        }
+
+        if (!dht.storeKey(key, value, fragment)) {
+            dht.deleteKey(key);
+            return CompletableFuture.completedFuture(false);
+        }
+
+        if (fragment) {
+            dht.addReference(key);
+            return CompletableFuture.completedFuture(true);
+        }
+
+        return ensureReplication(key, dht.getLocalValue(key)).thenApply(replicated -> {
+            if (replicated) {
+                dht.addReference(key);
+            } else {
+                unfinishedReplications.remove(key);
+                dht.deleteKey(key);
+            }
+
+            return replicated;
+        });
     }
 
     /**
-     * It ensures that all the Replication of the given key and the value are done.
+     * Sends the value to the successors that keep its replicas, all at once. Replicas that are not acknowledged are
+     * left to updateOwnKeysReplication(). If the quorum is not reached, the value is deleted by the caller, so the
+     * successors that acknowledged their replica, even after that, are told to delete it.
      *
      * @param key
      * @param value
+     * @return a future completed with true once WRITE_QUORUM - 1 successors acknowledged their replica, or all of
+     * them if there are fewer, and with false once that is no longer possible.
      */
-    private void ensureReplication(BigInteger key, byte[] value) {
-        NodeInfo nthSuccessor;
-        for (int i = unfinishedReplications.getOrDefault(key, 1); i < REPLICATION_DEGREE; i++) {
+    private CompletableFuture<Boolean> ensureReplication(BigInteger key, Payload value) {
+        List<CompletableFuture<Boolean>> replicas = new ArrayList<>();
+        List<NodeInfo> replicaHolders = new ArrayList<>();
+
+        for (int i = 1; i < REPLICATION_DEGREE; i++) {
+            NodeInfo nthSuccessor;
             try {
                 nthSuccessor = fingerTable.getNthSuccessor(i - 1);
             } catch (IndexOutOfBoundsException e) {
                 System.err.println("Replication of file with key " + DatatypeConverter.printHexBinary(key.toByteArray()) + " failed.\n" +
                         "Current replication degree is " + i + ".");
-                unfinishedReplications.put(key, i);
-                return;
+                unfinishedReplications.merge(key, i, Math::min);
+                break;
             }
 
-            int attempts = OPERATION_MAX_FAILED_ATTEMPTS;
-            while (attempts > 0) {
-                try {
-                    Mailman.sendOperation(nthSuccessor, new ReplicationOperation(self, key, value));
-                    break;
-                } catch (IOException e) {
-                    attempts--;
-                }
-            }
+            int degree = i;
+            CompletableFuture<Boolean> replica = CompletableFuture
+                    .supplyAsync(() -> replicate(nthSuccessor, requestId -> new ReplicationOperation(self, key, value, dht.getReferences(key), requestId)), threadPool)
+                    .thenCompose(acknowledgement -> acknowledgement);
 
-            /* If the operation exceeded its max attempts, then inform about its nthSuccessor failure and retry.
-             * After informing, the successor list will be updated and a new node will be selected, if available. */
-            if (attempts <= 0) {
-                informAboutFailure(nthSuccessor);
-                i--;
+            /* A successor that does not acknowledge its replica is not taken as failed: it may just be slow, and
+             * whether it failed is found out by stabilization. */
+            replica.whenComplete((acknowledged, failure) -> {
+                if (failure != null)
+                    unfinishedReplications.merge(key, degree, Math::min);
+            });
+
+            replicas.add(replica);
+            replicaHolders.add(nthSuccessor);
+        }
+
+        CompletableFuture<Boolean> result = quorum(replicas, Math.min(WRITE_QUORUM - 1, replicas.size()));
+        result.thenAccept(replicated -> {
+            if (replicated)
+                return;
+
+            for (int i = 0; i < replicas.size(); i++) {
+                NodeInfo replicaHolder = replicaHolders.get(i);
+                replicas.get(i).thenRun(() -> dropReplica(replicaHolder, key));
             }
+        });
+
+        return result;
+    }
+
+    /**
+     * Tells the given successor to delete its replica of the given key, which this node no longer stores.
+     *
+     * @param replicaHolder
+     * @param key
+     */
+    private void dropReplica(NodeInfo replicaHolder, BigInteger key) {
+        HashSet<BigInteger> keysToDelete = new HashSet<>(Collections.singleton(key));
+        send(replicaHolder, new ReplicationSyncResultOperation(self, keysToDelete, false, 0, new int[0]));
+    }
+
+    /**
+     * Gets a future that completes with true once the given number of replicas are acknowledged, and with false
+     * once too many failed for that to happen.
+     *
+     * @param replicas
+     * @param quorum
+     * @return
+     */
+    private static CompletableFuture<Boolean> quorum(List<CompletableFuture<Boolean>> replicas, int quorum) {
+        if (quorum <= 0)
+            return CompletableFuture.completedFuture(true);
+
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        AtomicInteger acknowledgements = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+
+        for (CompletableFuture<Boolean> replica : replicas) {
+            replica.whenComplete((acknowledged, failure) -> {
+                if (failure == null) {
+                    if (acknowledgements.incrementAndGet() == quorum)
+                        result.complete(true);
+                } else if (failures.incrementAndGet() == replicas.size() - quorum + 1) {
+                    result.complete(false);
+                }
+            });
         }
+
+        return result;
+    }
+
+    /**
+     * Replicas keep the reference count of their value, so that it is not lost if they are promoted. Once the count
+     * changes, the value is replicated again in the next stabilization. Fragments are not replicated.
+     *
+     * @param key
+     */
+    private void updateReplicatedReferences(BigInteger key) {
+        if (dht.getStorage().getStoredFile(key) != null)
+            unfinishedReplications.merge(key, 1, Math::min);
     }
 
     /**
@@ -290,11 +554,15 @@ public class Node {
      * @param node
      * @param key
      * @param value
+     * @param references reference count of the value in the node
      */
-    public void storeReplica(NodeInfo node, BigInteger key, byte[] value) {
-        ConcurrentHashMap<BigInteger, byte[]> replicas = replicatedValues.getOrDefault(node.getId(), new ConcurrentHashMap<>());
-        replicas.put(key, value);
-        replicatedValues.putIfAbsent(node.getId(), replicas);
+    public void storeReplica(NodeInfo node, BigInteger key, Payload value, int references) {
+        try {
+            dht.getStorage().storeReplica(node.getId(), key, value, references,
+                    () -> replicatedValues.computeIfAbsent(node.getId(), id -> ConcurrentHashMap.newKeySet()).add(key));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -303,10 +571,33 @@ public class Node {
      * @param key
      * @return
      */
-    public byte[] getLocalValue(BigInteger key) {
+    public Payload getLocalValue(BigInteger key) {
         return dht.getLocalValue(key);
     }
 
+    /**
+     * Gets the value with the given key, either stored locally or kept as a replica for another node.
+     *
+     * @param key
+     * @return the value, or null if this node has no copy of it.
+     */
+    public Payload getLocalOrReplicaValue(BigInteger key) {
+        Payload value = dht.getLocalValue(key);
+        if (value != null)
+            return value;
+
+        for (Map.Entry<BigInteger, Set<BigInteger>> replicas : replicatedValues.entrySet()) {
+            if (!replicas.getValue().contains(key))
+                continue;
+
+            value = dht.getStorage().getReplica(replicas.getKey(), key);
+            if (value != null)
+                return value;
+        }
+
+        return null;
+    }
+
     /**
      * Gets the Distributed Hash Table.
      *
@@ -321,30 +612,41 @@ public class Node {
      *
      * @param key
      * @param value
+     * @param fragment true if the value is a fragment of an erasure-coded value
      * @return
      */
-    CompletableFuture<Boolean> insert(BigInteger key, byte[] value) {
-        return operation(ongoingInsertions, new InsertOperation(self, key, value), key);
+    CompletableFuture<Boolean> insert(BigInteger key, byte[] value, boolean fragment) {
+        return operation(ongoingInsertions, (requestId, direct) -> new InsertOperation(self, key, Payload.of(value), requestId, direct, fragment), key);
     }
 
     /**
-     * Sends the given keys to the given destination.
+     * Sends the given keys and fragments to the given destination.
      *
      * @param destination
      * @param keys
+     * @param fragments
      * @return
      * @throws Exception
      */
-    private CompletableFuture<Boolean> sendKeysToNode(NodeInfo destination, ConcurrentHashMap<BigInteger, byte[]> keys) throws Exception {
-        int destinationId = destination.getId();
-        CompletableFuture<Boolean> sending = ongoingKeySendings.putIfAbsent(destinationId);
+    private CompletableFuture<Boolean> sendKeysToNode(NodeInfo destination, ConcurrentHashMap<BigInteger, Payload> keys,
+                                                      ConcurrentHashMap<BigInteger, Payload> fragments) throws Exception {
+        BigInteger destinationId = destination.getId();
+        OperationManager.Request<BigInteger, Boolean> sending = ongoingKeySendings.putIfAbsent(destinationId);
 
         if (sending != null)
-            return sending;
+            return sending.getFuture();
 
-        Mailman.sendOperation(destination, new SendKeysOperation(self, keys));
+        sending = ongoingKeySendings.get(destinationId);
+        try {
+            HashMap<BigInteger, Integer> references = dht.getReferences(keys.keySet());
+            references.putAll(dht.getReferences(fragments.keySet()));
+            Mailman.sendOperation(destination, new SendKeysOperation(self, keys, fragments, references, sending.getId()));
+        } catch (Exception e) {
+            ongoingKeySendings.operationFailed(sending.getId(), e);
+            throw e;
+        }
 
-        return ongoingKeySendings.get(destinationId);
+        return sending.getFuture();
     }
 
     /**
@@ -357,8 +659,8 @@ public class Node {
         if (fingerTable.updatePredecessor(newPredecessor)) {
 
             try {
-                sendKeysToNode(newPredecessor,
-                        dht.getKeysBelongingTo(newPredecessor)).get(OPERATION_TIMEOUT, TimeUnit.MILLISECONDS);
+                sendKeysToNode(newPredecessor, dht.getKeysBelongingTo(newPredecessor),
+                        dht.getFragmentsBelongingTo(newPredecessor)).get(OPERATION_TIMEOUT, TimeUnit.MILLISECONDS);
             } catch (Exception e) {
                 e.printStackTrace();
                 informAboutFailure(newPredecessor);
@@ -396,50 +698,174 @@ public class Node {
         int removedSuccessorIndex = fingerTable.informSuccessorsOfFailure(node);
         fingerTable.informFingersOfFailure(node);
         fingerTable.informPredecessorOfFailure(node);
+        fingerTable.informCacheOfFailure(node);
 
         /* If the removed successor index was less than REPLICATION_DEGREE - 1, it means that that successor was
          * replicating this node's local values. As such, we need to replicate to a new successor in order to
          * maintain the REPLICATION_DEGREE. */
-        if (removedSuccessorIndex < REPLICATION_DEGREE - 1)
-            replicateTo(dht.getLocalValues(), fingerTable.getNthSuccessor(REPLICATION_DEGREE - 1));
+        if (removedSuccessorIndex < REPLICATION_DEGREE - 1) {
+            Map<BigInteger, Payload> values = dht.getLocalValues();
+            replicateTo(values, fingerTable.getNthSuccessor(REPLICATION_DEGREE - 1)).thenAccept(replicated -> {
+                if (!replicated)
+                    replicateLater(values.keySet());
+            });
+        }
 
         /* If my predecessor fails, then I will take over its keys. */
         if (predecessor.equals(node)) {
-            ConcurrentHashMap<BigInteger, byte[]> replicas = replicatedValues.remove(node.getId());
+            Set<BigInteger> replicas = replicatedValues.remove(node.getId());
             if (replicas == null)
                 return;
 
-            dht.storeKeys(replicas);
-            replicateTo(replicas, fingerTable.getNthSuccessor(REPLICATION_DEGREE - 2));
+            Map<BigInteger, Payload> values = dht.takeOverReplicas(node.getId(), replicas);
+            replicateTo(values, fingerTable.getNthSuccessor(REPLICATION_DEGREE - 2)).thenAccept(replicated -> {
+                if (!replicated)
+                    replicateLater(values.keySet());
+            });
         }
     }
 
     /**
-     * Send all the given replicas to given node.
+     * Send all the given replicas to given node, in batches of about REPLICATION_BATCH_SIZE bytes. Up to
+     * REPLICATION_WINDOW batches are sent before waiting for the first one to be acknowledged. Batches are sent on
+     * the thread pool, so the calling thread does not wait for them. Whether a node that does not acknowledge a batch
+     * failed is left to the caller.
      *
      * @param replicas
      * @param node
+     * @return a future completed with true once every batch was acknowledged, or with false once one of them was
+     * never acknowledged, in which case the remaining batches are not sent.
      */
-    private void replicateTo(ConcurrentHashMap<BigInteger, byte[]> replicas, NodeInfo node) {
-        for (Map.Entry<BigInteger, byte[]> entry : replicas.entrySet()) {
-            try {
-                Mailman.sendOperation(node, new ReplicationOperation(self, entry.getKey(), entry.getValue()));
-            } catch (Exception e) {
-                informAboutFailure(node);
-                return;
+    private CompletableFuture<Boolean> replicateTo(Map<BigInteger, Payload> replicas, NodeInfo node) {
+        List<LongFunction<Operation>> batches = new ArrayList<>();
+        List<BigInteger> keys = new ArrayList<>();
+        List<Payload> values = new ArrayList<>();
+        long batchSize = 0;
+
+        for (Map.Entry<BigInteger, Payload> entry : replicas.entrySet()) {
+            keys.add(entry.getKey());
+            values.add(entry.getValue());
+            batchSize += entry.getValue().getLength();
+
+            if (batchSize >= REPLICATION_BATCH_SIZE) {
+                batches.add(replicationBatch(keys, values));
+                keys = new ArrayList<>();
+                values = new ArrayList<>();
+                batchSize = 0;
             }
         }
+
+        if (!keys.isEmpty())
+            batches.add(replicationBatch(keys, values));
+
+        if (batches.isEmpty())
+            return CompletableFuture.completedFuture(true);
+
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        Iterator<LongFunction<Operation>> pendingBatches = batches.iterator();
+        AtomicInteger unacknowledgedBatches = new AtomicInteger(batches.size());
+
+        for (int i = 0; i < REPLICATION_WINDOW; i++)
+            threadPool.execute(() -> sendReplicationBatch(node, pendingBatches, unacknowledgedBatches, result));
+
+        return result;
+    }
+
+    /**
+     * Creates the operation of a batch of replicas, with the reference counts of their values.
+     *
+     * @param keys
+     * @param values
+     * @return
+     */
+    private LongFunction<Operation> replicationBatch(List<BigInteger> keys, List<Payload> values) {
+        List<Integer> references = keys.stream().map(dht::getReferences).collect(Collectors.toList());
+        return requestId -> new ReplicationBatchOperation(self, requestId, keys, values, references);
+    }
+
+    /**
+     * Sends the next batch of replicas, sending it again if it is not acknowledged. Once it is acknowledged, its
+     * place in the window is taken by the batch after it.
+     *
+     * @param node
+     * @param pendingBatches        batches not sent yet
+     * @param unacknowledgedBatches
+     * @param result                completed once every batch was acknowledged, or one of them failed
+     */
+    private void sendReplicationBatch(NodeInfo node, Iterator<LongFunction<Operation>> pendingBatches,
+                                      AtomicInteger unacknowledgedBatches, CompletableFuture<Boolean> result) {
+        LongFunction<Operation> batch;
+        synchronized (pendingBatches) {
+            /* Once a batch failed, the remaining ones are not sent. */
+            if (result.isDone() || !pendingBatches.hasNext())
+                return;
+
+            batch = pendingBatches.next();
+        }
+
+        replicate(node, batch).whenCompleteAsync((acknowledged, failure) -> {
+            if (failure != null)
+                result.complete(false);
+            else if (unacknowledgedBatches.decrementAndGet() == 0)
+                result.complete(true);
+            else
+                sendReplicationBatch(node, pendingBatches, unacknowledgedBatches, result);
+        }, threadPool);
     }
 
     /**
-     * Finishes the onLookup of the given target node.
+     * Sends a replication operation on the calling thread, and again after RETRY_DELAY if it is not acknowledged.
+     *
+     * @param node
+     * @param replication creates the operation with the given request ID
+     * @return a future completed once the operation is acknowledged, or failed if it never is.
+     */
+    private CompletableFuture<Boolean> replicate(NodeInfo node, LongFunction<Operation> replication) {
+        return withRetries(() -> {
+            long replicationNumber = replicationNumbers.incrementAndGet();
+            ongoingReplications.putIfAbsent(replicationNumber);
+            OperationManager.Request<Long, Boolean> request = ongoingReplications.get(replicationNumber);
+
+            try {
+                Mailman.sendOperation(node, replication.apply(request.getId()));
+            } catch (IOException e) {
+                ongoingReplications.operationFailed(request.getId(), e);
+            }
+
+            return request.getFuture();
+        }, OPERATION_MAX_FAILED_ATTEMPTS);
+    }
+
+    /**
+     * Finishes a query of an iterative lookup.
+     *
+     * @param queryId
+     * @param result
+     */
+    public void onFindNodeFinished(long queryId, FindNodeResultOperation result) {
+        fingerTable.ongoingQueries.operationFinished(queryId, result);
+    }
+
+    /**
+     * Gets the known nodes that precede the key, closest to it first.
      *
      * @param key
+     * @param count
+     * @return
+     */
+    public List<NodeInfo> getClosestPrecedingNodes(BigInteger key, int count) {
+        return fingerTable.getClosestPrecedingNodes(key, count);
+    }
+
+    /**
+     * Finishes the onLookup of the given target node.
+     *
+     * @param requestId
      * @param targetNode
      */
-    public void onLookupFinished(BigInteger key, NodeInfo targetNode) {
+    public void onLookupFinished(long requestId, NodeInfo targetNode) {
         informAboutExistence(targetNode);
-        fingerTable.ongoingLookups.operationFinished(key, targetNode);
+        fingerTable.ongoingLookups.operationFinished(requestId, targetNode);
     }
 
     @Override
@@ -449,7 +875,7 @@ public class Node {
 
         sb.append("\n\nReplicated keys:\n");
         sb.append("NodeID    Key\n");
-        replicatedValues.forEach((nodeId, keys) -> keys.forEach((key, value) -> {
+        replicatedValues.forEach((nodeId, keys) -> keys.forEach(key -> {
             sb.append(nodeId);
             sb.append("          ");
             sb.append(DatatypeConverter.printHexBinary(key.toByteArray()));
@@ -460,12 +886,15 @@ public class Node {
     }
 
     /**
-     * Stores the given keys of the successor.
+     * Stores the given keys and fragments of the successor.
      *
      * @param keys
+     * @param fragments
+     * @param references reference counts of the keys and fragments
      */
-    public void storeSuccessorKeys(ConcurrentHashMap<BigInteger, byte[]> keys) {
-        dht.storeKeys(keys);
+    public void storeSuccessorKeys(ConcurrentHashMap<BigInteger, Payload> keys, ConcurrentHashMap<BigInteger, Payload> fragments,
+                                   Map<BigInteger, Integer> references) {
+        dht.storeKeys(keys, fragments, references);
     }
 
     /**
@@ -475,61 +904,264 @@ public class Node {
      * @return
      */
     CompletableFuture<byte[]> get(BigInteger key) {
-        return operation(ongoingGets, new GetOperation(self, key), key);
+        long start = System.nanoTime();
+
+        return mergedOperation(ongoingGets, (requestId, direct) -> new GetOperation(self, key, requestId, direct, false), key,
+                request -> {
+                    long delay = Math.max(HEDGE_MIN_DELAY, TimeUnit.NANOSECONDS.toMillis(getLatencies.getPercentile(
+                            HEDGE_PERCENTILE, TimeUnit.MILLISECONDS.toNanos(HEDGE_DEFAULT_DELAY))));
+                    ScheduledFuture<?> hedge = timer.schedule(() -> threadPool.execute(() -> hedgeGet(key, request.getId())),
+                            delay, TimeUnit.MILLISECONDS);
+
+                    request.getFuture().whenComplete((value, failure) -> {
+                        hedge.cancel(false);
+                        if (failure == null)
+                            getLatencies.record(System.nanoTime() - start);
+                    });
+                });
+    }
+
+    /**
+     * Finds the node that owns the given key, straight from the owner cache if it was found recently.
+     *
+     * @param key
+     * @return
+     */
+    CompletableFuture<NodeInfo> findOwner(BigInteger key) {
+        NodeInfo cachedOwner = fingerTable.getCachedOwner(key);
+        if (cachedOwner != null)
+            return CompletableFuture.completedFuture(cachedOwner);
+
+        return withRetries(() -> withTimeout(fingerTable.lookup(key), LOOKUP_TIMEOUT), OPERATION_MAX_FAILED_ATTEMPTS);
+    }
+
+    /**
+     * Sends a get that the owner of the key did not answer in time to the owner's successor, which keeps the first
+     * replica of its values. Whichever answers first completes the get.
+     *
+     * @param key
+     * @param requestId
+     */
+    private void hedgeGet(BigInteger key, long requestId) {
+        NodeInfo owner = fingerTable.getCachedOwner(key);
+        if (owner == null)
+            return;
+
+        BigInteger replicaKey = getSuccessorKey(owner);
+        NodeInfo cachedReplica = fingerTable.getCachedOwner(replicaKey);
+        CompletableFuture<NodeInfo> replica = cachedReplica != null
+                ? CompletableFuture.completedFuture(cachedReplica)
+                : withTimeout(fingerTable.lookup(replicaKey), LOOKUP_TIMEOUT);
+
+        replica.thenAccept(replicaHolder -> {
+            if (!replicaHolder.equals(owner))
+                send(replicaHolder, new GetOperation(self, key, requestId, false, true));
+        });
     }
 
     /**
-     * Generalizes all the operations (insert, get and delete).
+     * Generalizes the operations that change a value (insert and delete). Each call is a request of its own, since
+     * each one adds or releases a reference to the value, so concurrent calls for the same key are not merged.
      *
      * @param operationManager
-     * @param operation
+     * @param operationFactory creates the operation, given the ID of its request
      * @param key
      * @param <R>
      * @return
      */
-    private <R> CompletableFuture<R> operation(OperationManager<BigInteger, R> operationManager, Operation
-            operation, BigInteger key) {
-        CompletableFuture<R> operationState = operationManager.putIfAbsent(key);
+    private <R> CompletableFuture<R> operation(OperationManager<Long, R> operationManager,
+                                               OperationFactory operationFactory, BigInteger key) {
+        long operationNumber = operationNumbers.incrementAndGet();
+        operationManager.putIfAbsent(operationNumber);
 
-        if (operationState != null)
-            return operationState;
+        return sendRequest(operationManager, operationFactory, key, operationManager.get(operationNumber));
+    }
 
-        operationState = operationManager.get(key);
+    /**
+     * Same as operation(operationManager, operationFactory, key), except that concurrent calls for the same key share
+     * a single request, which is only fine for operations that do not change the value. The given action is run on
+     * the request when it is a new one rather than one that is already ongoing for the same key.
+     *
+     * @param operationManager
+     * @param operationFactory
+     * @param key
+     * @param onNewRequest
+     * @param <R>
+     * @return
+     */
+    private <R> CompletableFuture<R> mergedOperation(OperationManager<BigInteger, R> operationManager,
+                                                     OperationFactory operationFactory, BigInteger key,
+                                                     Consumer<OperationManager.Request<BigInteger, R>> onNewRequest) {
+        OperationManager.Request<BigInteger, R> ongoingRequest = operationManager.putIfAbsent(key);
 
-        NodeInfo destination = null;
-        int attempts = OPERATION_MAX_FAILED_ATTEMPTS;
-        while (attempts > 0) {
-            try {
-                destination = fingerTable.lookup(key).get(LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
-                break;
-            } catch (InterruptedException | ExecutionException | TimeoutException e) {
-                attempts--;
+        if (ongoingRequest != null)
+            return ongoingRequest.getFuture();
 
-                if (attempts <= 0) {
-                    fingerTable.ongoingLookups.operationFailed(key, new KeyNotFoundException());
-                    operationManager.operationFailed(key, e);
-                    return operationState;
-                }
-            }
+        OperationManager.Request<BigInteger, R> request = operationManager.get(key);
+        onNewRequest.accept(request);
+
+        return sendRequest(operationManager, operationFactory, key, request);
+    }
+
+    /**
+     * Sends the operation of a new request. The lookup of the destination and the sending of the operation are
+     * chained on the returned future, so no thread waits for them.
+     * If the owner of the key was found by a recent lookup, the operation is sent straight to it, and only looked
+     * up if that owner fails or redirects it.
+     *
+     * @param operationManager
+     * @param operationFactory
+     * @param key
+     * @param request
+     * @param <T>
+     * @param <R>
+     * @return
+     */
+    private <T, R> CompletableFuture<R> sendRequest(OperationManager<T, R> operationManager,
+                                                    OperationFactory operationFactory, BigInteger key,
+                                                    OperationManager.Request<T, R> request) {
+        long requestId = request.getId();
+        NodeInfo cachedOwner = fingerTable.getCachedOwner(key);
+
+        if (cachedOwner == null) {
+            lookupAndSend(operationManager, operationFactory, key, requestId);
+            return request.getFuture();
         }
 
-        attempts = OPERATION_MAX_FAILED_ATTEMPTS;
-        while (attempts > 0) {
+        directRequests.put(requestId, () -> lookupAndSend(operationManager, operationFactory, key, requestId));
+        request.getFuture().whenComplete((result, failure) -> directRequests.remove(requestId));
+
+        send(cachedOwner, operationFactory.create(requestId, true)).exceptionally(sendFailure -> {
+            onRedirect(requestId, cachedOwner);
+            return null;
+        });
+
+        return request.getFuture();
+    }
+
+    /**
+     * Looks up the owner of the key and sends it the operation.
+     *
+     * @param operationManager
+     * @param operationFactory
+     * @param key
+     * @param requestId
+     * @param <T>
+     * @param <R>
+     */
+    private <T, R> void lookupAndSend(OperationManager<T, R> operationManager,
+                                      OperationFactory operationFactory, BigInteger key, long requestId) {
+        withRetries(() -> withTimeout(fingerTable.lookup(key), LOOKUP_TIMEOUT), OPERATION_MAX_FAILED_ATTEMPTS)
+                .whenComplete((destination, lookupFailure) -> {
+                    if (lookupFailure != null) {
+                        fingerTable.ongoingLookups.operationFailed(key, new KeyNotFoundException());
+                        operationManager.operationFailed(requestId, lookupFailure);
+                        return;
+                    }
+
+                    Operation operation = operationFactory.create(requestId, false);
+                    withRetries(() -> send(destination, operation), OPERATION_MAX_FAILED_ATTEMPTS)
+                            .exceptionally(sendFailure -> {
+                                operationManager.operationFailed(requestId, sendFailure);
+                                return null;
+                            });
+                });
+    }
+
+    /**
+     * Sends the operation of a request that was sent to a cached owner that could not take it, this time
+     * to the owner found by a lookup.
+     *
+     * @param requestId
+     * @param cachedOwner
+     */
+    public void onRedirect(long requestId, NodeInfo cachedOwner) {
+        fingerTable.informCacheOfFailure(cachedOwner);
+
+        Runnable lookupAndSend = directRequests.remove(requestId);
+        if (lookupAndSend != null)
+            lookupAndSend.run();
+    }
+
+    /**
+     * Checks if this node owns the given key, as far as it knows its predecessor.
+     *
+     * @param key
+     * @return
+     */
+    public boolean ownsKey(BigInteger key) {
+        NodeInfo predecessor = fingerTable.getPredecessor();
+
+        return predecessor == null || predecessor.equals(self) || between(predecessor, self, key);
+    }
+
+    /**
+     * Sends the given operation on the thread pool, as opening a connection or waiting for a busy one blocks.
+     *
+     * @param destination
+     * @param operation
+     * @return
+     */
+    private CompletableFuture<Void> send(NodeInfo destination, Operation operation) {
+        return CompletableFuture.runAsync(() -> {
             try {
                 Mailman.sendOperation(destination, operation);
-                break;
-            } catch (Exception e) {
-                attempts--;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, threadPool);
+    }
 
-                if (attempts <= 0) {
-                    operationManager.operationFailed(key, e);
-                    return operationState;
-                }
+    /**
+     * Runs the given attempt until it succeeds, up to the given number of times. Failed attempts are retried
+     * after RETRY_DELAY, without holding a thread in the meantime.
+     *
+     * @param attempt
+     * @param attempts
+     * @param <T>
+     * @return
+     */
+    private <T> CompletableFuture<T> withRetries(Supplier<CompletableFuture<T>> attempt, int attempts) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        retry(attempt, attempts, result);
+        return result;
+    }
 
-            }
-        }
+    private <T> void retry(Supplier<CompletableFuture<T>> attempt, int attempts, CompletableFuture<T> result) {
+        attempt.get().whenComplete((value, failure) -> {
+            if (failure == null)
+                result.complete(value);
+            else if (attempts <= 1)
+                result.completeExceptionally(failure);
+            else
+                timer.schedule(() -> threadPool.execute(() -> retry(attempt, attempts - 1, result)),
+                        RETRY_DELAY, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /**
+     * Gets a future that fails if the given one does not complete within the given time.
+     * The given future is left untouched, as it may be shared by other operations.
+     *
+     * @param future
+     * @param timeout in milliseconds
+     * @param <T>
+     * @return
+     */
+    private <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeout) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ScheduledFuture<?> expiration = timer.schedule(() -> result.completeExceptionally(new TimeoutException()),
+                timeout, TimeUnit.MILLISECONDS);
+
+        future.whenComplete((value, failure) -> {
+            expiration.cancel(false);
+            if (failure == null)
+                result.complete(value);
+            else
+                result.completeExceptionally(failure);
+        });
 
-        return operationState;
+        return result;
     }
 
     /**
@@ -539,7 +1171,7 @@ public class Node {
      * @return
      */
     CompletableFuture<Boolean> delete(BigInteger key) {
-        return operation(ongoingDeletes, new DeleteOperation(self, key), key);
+        return operation(ongoingDeletes, (requestId, direct) -> new DeleteOperation(self, key, requestId, direct), key);
     }
 
     /**
@@ -549,7 +1181,36 @@ public class Node {
      * @return
      */
     public boolean removeValue(BigInteger key) {
-        return dht.deleteKey(key);
+        boolean removed = dht.deleteKey(key);
+        updateReplicatedReferences(key);
+        return removed;
+    }
+
+    /**
+     * Compares the digests of the given nodes of the Merkle tree of the replicas kept by origin with the ones of the
+     * local values, and answers with the nodes that differ, so that origin describes them in more detail.
+     * If the origin is no longer considered to be a valid replica holder, then it is told to delete all of
+     * its replicas.
+     *
+     * @param origin  Remote node with some replicas.
+     * @param level   of the nodes in the tree
+     * @param nodes
+     * @param digests of the replicas under each node
+     */
+    public void compareReplicas(NodeInfo origin, int level, int[] nodes, long[] digests) {
+        if (!fingerTable.getSuccessors().contains(origin)) {
+            sendSyncResult(origin, new ReplicationSyncResultOperation(self, new HashSet<>(), true, level, new int[0]));
+            return;
+        }
+
+        MerkleTree tree = dht.getStorage().getStoredKeysTree();
+        int[] differingNodes = IntStream.range(0, nodes.length)
+                .filter(i -> MerkleTree.contains(level, nodes[i]) && tree.getDigest(level, nodes[i]) != digests[i])
+                .map(i -> nodes[i])
+                .toArray();
+
+        if (differingNodes.length > 0)
+            sendSyncResult(origin, new ReplicationSyncResultOperation(self, new HashSet<>(), false, level, differingNodes));
     }
 
     /**
@@ -558,35 +1219,88 @@ public class Node {
      * its keys.
      *
      * @param origin Remote node with some replicas.
-     * @param keys
+     * @param leaves of the Merkle tree the keys fall in
+     * @param keys   of the replicas kept by origin under the leaves
      */
-    @SuppressWarnings("unchecked")
-    public void synchronizeReplicas(NodeInfo origin, HashSet<BigInteger> keys) {
-        HashSet<BigInteger> keysToDelete;
-
-        if (fingerTable.getSuccessors().contains(origin))
-            keysToDelete = keys;
-        else {
-            keysToDelete = (HashSet<BigInteger>) keys.clone();
-            keysToDelete.removeAll(dht.getKeySet());
+    public void synchronizeReplicas(NodeInfo origin, int[] leaves, HashSet<BigInteger> keys) {
+        if (!fingerTable.getSuccessors().contains(origin)) {
+            sendSyncResult(origin, new ReplicationSyncResultOperation(self, new HashSet<>(), true, MerkleTree.DEPTH, new int[0]));
+            return;
         }
 
+        HashSet<BigInteger> keysToDelete = dht.getMissingKeys(keys);
+        if (!sendSyncResult(origin, new ReplicationSyncResultOperation(self, keysToDelete, false, MerkleTree.DEPTH, new int[0])))
+            return;
+
+        Set<Integer> leafSet = IntStream.of(leaves).boxed().collect(Collectors.toSet());
+        ConcurrentHashMap<BigInteger, Payload> toReplicate = dht.getDifference(keys, leafSet);
+        /* Replicas that are not acknowledged are sent again by the next synchronization. */
+        replicateTo(toReplicate, origin);
+    }
+
+    /**
+     * Sends the result of a replica synchronization to the given replica holder.
+     *
+     * @param origin
+     * @param result
+     * @return true if it was sent.
+     */
+    private boolean sendSyncResult(NodeInfo origin, ReplicationSyncResultOperation result) {
         int attempts = OPERATION_MAX_FAILED_ATTEMPTS;
         while (attempts > 0) {
             try {
-                Mailman.sendOperation(origin, new ReplicationSyncResultOperation(self, keysToDelete));
-                break;
+                Mailman.sendOperation(origin, result);
+                return true;
             } catch (IOException e) {
                 attempts--;
                 e.printStackTrace();
             }
         }
 
-        if (attempts <= 0)
+        return false;
+    }
+
+    /**
+     * Describes the replicas of origin kept locally under the given nodes of their Merkle tree, by the digests of
+     * their children, or by their keys if they are leaves.
+     *
+     * @param origin owner of the replicas
+     * @param level  of the nodes in the tree
+     * @param nodes
+     */
+    public void describeReplicas(NodeInfo origin, int level, int[] nodes) {
+        MerkleTree tree = dht.getStorage().getReplicaTree(origin.getId());
+        Set<BigInteger> replicas = replicatedValues.get(origin.getId());
+        if (tree == null || replicas == null || !IntStream.of(nodes).allMatch(node -> MerkleTree.contains(level, node)))
             return;
 
-        ConcurrentHashMap<BigInteger, byte[]> toReplicate = dht.getDifference(keys);
-        replicateTo(toReplicate, origin);
+        Operation operation;
+        if (level < MerkleTree.DEPTH) {
+            int[] children = MerkleTree.getChildren(nodes);
+            long[] digests = IntStream.of(children).mapToLong(child -> tree.getDigest(level + 1, child)).toArray();
+            operation = new ReplicationSyncOperation(self, level + 1, children, digests);
+        } else {
+            Set<Integer> leaves = IntStream.of(nodes).boxed().collect(Collectors.toSet());
+            HashSet<BigInteger> keys = replicas.stream()
+                    .filter(key -> leaves.contains(MerkleTree.getLeaf(key)))
+                    .collect(Collectors.toCollection(HashSet::new));
+            operation = new ReplicationSyncOperation(self, nodes, keys);
+        }
+
+        try {
+            Mailman.sendOperation(origin, operation);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Deletes all the replicas of the given node, as this node is no longer one of its replica holders.
+     *
+     * @param origin
+     */
+    public void dropReplicas(NodeInfo origin) {
+        dht.getStorage().deleteReplicas(origin.getId(), () -> replicatedValues.remove(origin.getId()));
     }
 
     /**
@@ -597,14 +1311,26 @@ public class Node {
      * @param keysToDelete
      */
     public void updateReplicas(NodeInfo origin, HashSet<BigInteger> keysToDelete) {
-        ConcurrentHashMap<BigInteger, byte[]> originReplicas = replicatedValues.get(origin.getId());
+        Set<BigInteger> originReplicas = replicatedValues.get(origin.getId());
 
         if (originReplicas != null) {
-            keysToDelete.forEach(originReplicas::remove);
+            for (BigInteger key : keysToDelete)
+                dht.getStorage().deleteReplica(origin.getId(), key, () -> originReplicas.remove(key));
 
             if (originReplicas.size() == 0)
-                replicatedValues.remove(origin.getId());
-
+                dht.getStorage().deleteReplicas(origin.getId(), () -> replicatedValues.remove(origin.getId(), originReplicas));
         }
     }
+
+    /**
+     * Creates the operation of a request.
+     */
+    private interface OperationFactory {
+        /**
+         * @param requestId ID of the request
+         * @param direct    true if the operation is sent to a cached owner instead of one found by a lookup
+         * @return
+         */
+        Operation create(long requestId, boolean direct);
+    }
 }
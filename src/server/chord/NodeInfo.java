@@ -1,8 +1,13 @@
 package server.chord;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
@@ -11,14 +16,65 @@ import static server.utils.Utils.hash;
 
 public class NodeInfo implements Serializable {
 
-    private final int id;
+    private final BigInteger id;
     private final InetAddress address;
     private final int port;
 
     public NodeInfo(InetAddress address, int port) throws NoSuchAlgorithmException {
+        this(address, port, 0);
+    }
+
+    /**
+     * @param address
+     * @param port
+     * @param virtualIndex Index of the node among the virtual nodes of the server at the given address and port
+     * @throws NoSuchAlgorithmException
+     */
+    public NodeInfo(InetAddress address, int port, int virtualIndex) throws NoSuchAlgorithmException {
+        this.address = address;
+        this.port = port;
+        this.id = generateId(address.getAddress(), port, virtualIndex);
+    }
+
+    private NodeInfo(InetAddress address, int port, BigInteger id) {
         this.address = address;
         this.port = port;
-        this.id = generateId(address.getAddress(), port);
+        this.id = id;
+    }
+
+    /**
+     * Writes the node in the binary wire format: ID length (1 byte), ID, address length (1 byte), address
+     * and port (2 bytes).
+     *
+     * @param outputStream
+     * @throws IOException
+     */
+    public void write(DataOutputStream outputStream) throws IOException {
+        byte[] rawId = id.toByteArray();
+        byte[] rawAddress = address.getAddress();
+
+        outputStream.writeByte(rawId.length);
+        outputStream.write(rawId);
+        outputStream.writeByte(rawAddress.length);
+        outputStream.write(rawAddress);
+        outputStream.writeShort(port);
+    }
+
+    /**
+     * Reads a node written by write().
+     *
+     * @param inputStream
+     * @return
+     * @throws IOException
+     */
+    public static NodeInfo read(DataInputStream inputStream) throws IOException {
+        byte[] rawId = new byte[inputStream.readUnsignedByte()];
+        inputStream.readFully(rawId);
+        byte[] rawAddress = new byte[inputStream.readUnsignedByte()];
+        inputStream.readFully(rawAddress);
+        int port = inputStream.readUnsignedShort();
+
+        return new NodeInfo(InetAddress.getByAddress(rawAddress), port, new BigInteger(rawId));
     }
 
     /**
@@ -26,20 +82,23 @@ public class NodeInfo implements Serializable {
      *
      * @param address
      * @param port
+     * @param virtualIndex
      * @return
      * @throws NoSuchAlgorithmException
      */
-    private static int generateId(byte[] address, int port) throws NoSuchAlgorithmException {
-        byte[] idGenerator = Arrays.copyOf(address, address.length + 4);
+    private static BigInteger generateId(byte[] address, int port, int virtualIndex) throws NoSuchAlgorithmException {
+        /* The first virtual node keeps the ID the server had before it hosted virtual nodes. */
+        byte[] idGenerator = Arrays.copyOf(address, address.length + (virtualIndex == 0 ? 4 : 8));
 
         idGenerator[4] = (byte) (port >> 24);
         idGenerator[5] = (byte) (port >> 16);
         idGenerator[6] = (byte) (port >> 8);
         idGenerator[7] = (byte) port;
 
+        if (virtualIndex != 0)
+            ByteBuffer.wrap(idGenerator, 8, 4).putInt(virtualIndex);
 
-        BigInteger id = new BigInteger(hash(idGenerator));
-        return Integer.remainderUnsigned(id.intValue(), MAX_NODES);
+        return new BigInteger(1, hash(idGenerator)).mod(MAX_NODES);
     }
 
     /**
@@ -47,7 +106,7 @@ public class NodeInfo implements Serializable {
      *
      * @return
      */
-    public int getId() {
+    public BigInteger getId() {
         return id;
     }
 
@@ -69,9 +128,18 @@ public class NodeInfo implements Serializable {
         return port;
     }
 
+    /**
+     * Gets the address and port of the server hosting the node, which is shared by all its virtual nodes.
+     *
+     * @return
+     */
+    public InetSocketAddress getEndpoint() {
+        return new InetSocketAddress(address, port);
+    }
+
     @Override
     public int hashCode() {
-        return id;
+        return id.hashCode();
     }
 
     @Override
@@ -81,6 +149,6 @@ public class NodeInfo implements Serializable {
 
     @Override
     public boolean equals(Object o) {
-        return o instanceof NodeInfo && ((NodeInfo) o).id == id;
+        return o instanceof NodeInfo && ((NodeInfo) o).id.equals(id);
     }
 }
@@ -0,0 +1,120 @@
+package server.chord;
+
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static server.chord.Node.MAX_NODES;
+import static server.utils.Utils.getNodeFromKey;
+
+/**
+ * Owners of key ranges learned from lookups, so that operations on keys whose owner was found recently can be sent
+ * straight to it. For each owner, the lowest key it was found to own is kept: every key from that one up to the
+ * owner's ID belongs to the owner as well, until a node joins in between.
+ */
+class OwnerCache {
+    private static final int MAX_OWNERS = 1024;
+
+    /* Ranges by the ID of their owner, which is the highest key of the range. */
+    private final TreeMap<BigInteger, Range> ranges = new TreeMap<>();
+
+    /**
+     * Records that the given node owns the given key.
+     *
+     * @param key
+     * @param owner
+     */
+    synchronized void put(BigInteger key, NodeInfo owner) {
+        BigInteger lowestKey = getNodeFromKey(key);
+        Range range = ranges.get(owner.getId());
+
+        if (range != null && range.contains(lowestKey))
+            return;
+
+        /* The owner of a key owns every key up to its own ID, so other owners thought to be in between are stale. */
+        Iterator<Map.Entry<BigInteger, Range>> iterator = ranges.entrySet().iterator();
+        while (iterator.hasNext()) {
+            BigInteger ownerId = iterator.next().getKey();
+            if (!ownerId.equals(owner.getId()) && distance(ownerId, owner.getId()).compareTo(distance(lowestKey, owner.getId())) <= 0)
+                iterator.remove();
+        }
+
+        ranges.put(owner.getId(), new Range(lowestKey, owner));
+
+        if (ranges.size() > MAX_OWNERS)
+            ranges.pollFirstEntry();
+    }
+
+    /**
+     * Gets the owner of the given key, if it is known.
+     *
+     * @param key
+     * @return the owner, or null if the key is not in a known range.
+     */
+    synchronized NodeInfo get(BigInteger key) {
+        Range range = getRangeOf(getNodeFromKey(key));
+
+        return range != null && range.contains(getNodeFromKey(key)) ? range.owner : null;
+    }
+
+    /**
+     * Shrinks the range the given node joined in, as it now owns the keys up to its ID.
+     *
+     * @param node
+     */
+    synchronized void nodeJoined(NodeInfo node) {
+        Range range = getRangeOf(node.getId());
+
+        if (range != null && !range.owner.getId().equals(node.getId()) && range.contains(node.getId()))
+            range.lowestKey = node.getId().add(BigInteger.ONE).mod(MAX_NODES);
+    }
+
+    /**
+     * Forgets the range of the given node.
+     *
+     * @param node
+     */
+    synchronized void remove(NodeInfo node) {
+        ranges.remove(node.getId());
+    }
+
+    /**
+     * Gets the range of the first owner at or after the given position in the ring.
+     *
+     * @param position
+     * @return
+     */
+    private Range getRangeOf(BigInteger position) {
+        Map.Entry<BigInteger, Range> entry = ranges.ceilingEntry(position);
+        if (entry == null)
+            entry = ranges.firstEntry();
+
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * Distance travelled clockwise in the ring from the given position up to the given owner.
+     *
+     * @param position
+     * @param ownerId
+     * @return
+     */
+    private static BigInteger distance(BigInteger position, BigInteger ownerId) {
+        return ownerId.subtract(position).mod(MAX_NODES);
+    }
+
+    private static class Range {
+        private BigInteger lowestKey;
+        private final NodeInfo owner;
+
+        Range(BigInteger lowestKey, NodeInfo owner) {
+            this.lowestKey = lowestKey;
+            this.owner = owner;
+        }
+
+        boolean contains(BigInteger position) {
+            return distance(position, owner.getId()).compareTo(distance(lowestKey, owner.getId())) <= 0;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package server.communication;
+
+import server.chord.NodeInfo;
+import server.communication.operations.*;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Compact binary codec. Every operation is encoded as a frame made of a type tag (1 byte), the ID of the node
+ * it is sent to, its origin and then its own fields, as written by Operation.write().
+ * Payloads are not part of the frame: the frame only holds their length and their raw bytes are sent
+ * after it by the Connection, in the order they were written.
+ */
+public class BinaryCodec extends OperationCodec {
+    /* Keys are SHA-1 hashes or identifiers of the 160-bit ring, stored in two's complement and sign extended
+     * to a fixed width. Identifiers are unsigned, so one byte more than a hash is needed to keep their sign. */
+    public static final int KEY_LENGTH = 21;
+
+    private static final Map<Class<? extends Operation>, Byte> tags = new HashMap<>();
+    private static final Decoder[] decoders = new Decoder[Byte.MAX_VALUE + 1];
+
+    static {
+        register(1, LookupOperation.class, LookupOperation::read);
+        register(2, LookupResultOperation.class, LookupResultOperation::read);
+        register(3, NotifyOperation.class, NotifyOperation::read);
+        register(4, RequestPredecessorOperation.class, RequestPredecessorOperation::read);
+        register(5, RequestPredecessorResultOperation.class, RequestPredecessorResultOperation::read);
+        register(6, InsertOperation.class, InsertOperation::read);
+        register(7, InsertResultOperation.class, InsertResultOperation::read);
+        register(8, GetOperation.class, GetOperation::read);
+        register(9, GetResultOperation.class, GetResultOperation::read);
+        register(10, DeleteOperation.class, DeleteOperation::read);
+        register(11, DeleteResultOperation.class, DeleteResultOperation::read);
+        register(12, ReplicationOperation.class, ReplicationOperation::read);
+        register(13, ReplicationSyncOperation.class, ReplicationSyncOperation::read);
+        register(14, ReplicationSyncResultOperation.class, ReplicationSyncResultOperation::read);
+        register(15, SendKeysOperation.class, SendKeysOperation::read);
+        register(16, SendKeysResultOperation.class, SendKeysResultOperation::read);
+        register(17, FindNodeOperation.class, FindNodeOperation::read);
+        register(18, FindNodeResultOperation.class, FindNodeResultOperation::read);
+        register(19, RedirectOperation.class, RedirectOperation::read);
+        register(20, PingOperation.class, PingOperation::read);
+        register(21, PingResultOperation.class, PingResultOperation::read);
+        register(22, ReplicationBatchOperation.class, ReplicationBatchOperation::read);
+        register(23, ReplicationResultOperation.class, ReplicationResultOperation::read);
+    }
+
+    private static void register(int tag, Class<? extends Operation> type, Decoder decoder) {
+        tags.put(type, (byte) tag);
+        decoders[tag] = decoder;
+    }
+
+    @Override
+    Frame encode(Operation operation) throws IOException {
+        Byte tag = tags.get(operation.getClass());
+        if (tag == null)
+            throw new IOException("Operation " + operation.getClass().getSimpleName() + " has no binary encoding.");
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        FrameOutputStream frameStream = new FrameOutputStream(frame);
+        byte[] destination = operation.getDestination().toByteArray();
+        frameStream.writeByte(tag);
+        frameStream.writeByte(destination.length);
+        frameStream.write(destination);
+        operation.getOrigin().write(frameStream);
+        operation.write(frameStream);
+        frameStream.flush();
+
+        return new Frame(frame.toByteArray(), frameStream.payloads);
+    }
+
+    @Override
+    Operation decode(Frame frame) throws IOException {
+        int tag = frame.content[0];
+        if (tag <= 0 || decoders[tag] == null)
+            return null;
+
+        DataInputStream frameStream = new FrameInputStream(new ByteArrayInputStream(frame.content, 1, frame.content.length - 1),
+                frame.payloads.iterator());
+        byte[] destination = new byte[frameStream.readUnsignedByte()];
+        frameStream.readFully(destination);
+
+        Operation operation = decoders[tag].decode(NodeInfo.read(frameStream), frameStream);
+        operation.setDestination(new BigInteger(destination));
+        return operation;
+    }
+
+    /**
+     * Writes a key with a fixed width of KEY_LENGTH bytes.
+     *
+     * @param outputStream
+     * @param key
+     * @throws IOException
+     */
+    public static void writeKey(DataOutputStream outputStream, BigInteger key) throws IOException {
+        byte[] bytes = key.toByteArray();
+        byte padding = (byte) (key.signum() < 0 ? 0xFF : 0x00);
+
+        for (int i = bytes.length; i < KEY_LENGTH; i++)
+            outputStream.writeByte(padding);
+
+        outputStream.write(bytes, Math.max(0, bytes.length - KEY_LENGTH), Math.min(bytes.length, KEY_LENGTH));
+    }
+
+    /**
+     * Reads a key written by writeKey().
+     *
+     * @param inputStream
+     * @return
+     * @throws IOException
+     */
+    public static BigInteger readKey(DataInputStream inputStream) throws IOException {
+        byte[] bytes = new byte[KEY_LENGTH];
+        inputStream.readFully(bytes);
+        return new BigInteger(bytes);
+    }
+
+    /**
+     * Writes a set of keys preceded by its size.
+     *
+     * @param outputStream
+     * @param keys
+     * @throws IOException
+     */
+    public static void writeKeys(DataOutputStream outputStream, HashSet<BigInteger> keys) throws IOException {
+        outputStream.writeInt(keys.size());
+        for (BigInteger key : keys)
+            writeKey(outputStream, key);
+    }
+
+    /**
+     * Reads a set of keys written by writeKeys().
+     *
+     * @param inputStream
+     * @return
+     * @throws IOException
+     */
+    public static HashSet<BigInteger> readKeys(DataInputStream inputStream) throws IOException {
+        int size = readCount(inputStream, KEY_LENGTH);
+        HashSet<BigInteger> keys = new HashSet<>();
+
+        for (int i = 0; i < size; i++)
+            keys.add(readKey(inputStream));
+
+        return keys;
+    }
+
+    /**
+     * Writes an array of indices preceded by its length.
+     *
+     * @param outputStream
+     * @param indices
+     * @throws IOException
+     */
+    public static void writeIndices(DataOutputStream outputStream, int[] indices) throws IOException {
+        outputStream.writeInt(indices.length);
+        for (int index : indices)
+            outputStream.writeInt(index);
+    }
+
+    /**
+     * Reads an array of indices written by writeIndices().
+     *
+     * @param inputStream
+     * @return
+     * @throws IOException
+     */
+    public static int[] readIndices(DataInputStream inputStream) throws IOException {
+        int[] indices = new int[readCount(inputStream, Integer.BYTES)];
+
+        for (int i = 0; i < indices.length; i++)
+            indices[i] = inputStream.readInt();
+
+        return indices;
+    }
+
+    /**
+     * Reads the number of elements that follow, which is checked against the rest of the frame before anything is
+     * allocated for them, as it comes from another node.
+     *
+     * @param inputStream
+     * @param elementSize minimum number of bytes each element takes in the frame
+     * @return
+     * @throws IOException if the elements can not fit in the rest of the frame.
+     */
+    public static int readCount(DataInputStream inputStream, int elementSize) throws IOException {
+        int count = inputStream.readInt();
+
+        if (count < 0 || (inputStream instanceof FrameInputStream && count > inputStream.available() / elementSize))
+            throw new IOException("Count of " + count + " elements does not fit in the frame.");
+
+        return count;
+    }
+
+    /**
+     * Writes a payload. When writing a frame, only the payload length is written to it and the content
+     * is sent after the frame; otherwise the content follows the length.
+     *
+     * @param outputStream
+     * @param payload
+     * @throws IOException
+     */
+    public static void writePayload(DataOutputStream outputStream, Payload payload) throws IOException {
+        if (payload == null) {
+            outputStream.writeLong(-1);
+            return;
+        }
+
+        outputStream.writeLong(payload.getLength());
+
+        if (outputStream instanceof FrameOutputStream)
+            ((FrameOutputStream) outputStream).payloads.add(payload);
+        else
+            payload.transferTo(outputStream);
+    }
+
+    /**
+     * Reads a payload written by writePayload().
+     *
+     * @param inputStream
+     * @param spool if false, payloads the Connection wrote to a temporary file are read back into memory.
+     * @return
+     * @throws IOException
+     */
+    public static Payload readPayload(DataInputStream inputStream, boolean spool) throws IOException {
+        long length = inputStream.readLong();
+        if (length < 0)
+            return null;
+
+        if (inputStream instanceof FrameInputStream)
+            return ((FrameInputStream) inputStream).readPayload(length, spool);
+        else
+            return Payload.receive(inputStream, length, null);
+    }
+
+    /**
+     * Stream used to write a frame, which collects the payloads to be sent after it.
+     */
+    private static class FrameOutputStream extends DataOutputStream {
+        private final List<Payload> payloads = new ArrayList<>();
+
+        FrameOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+    }
+
+    /**
+     * Stream used to read a frame, which takes its payloads from the ones received after it.
+     */
+    private static class FrameInputStream extends DataInputStream {
+        private final Iterator<Payload> payloads;
+
+        FrameInputStream(InputStream inputStream, Iterator<Payload> payloads) {
+            super(inputStream);
+            this.payloads = payloads;
+        }
+
+        Payload readPayload(long length, boolean spool) throws IOException {
+            if (!payloads.hasNext())
+                throw new IOException("Frame has fewer payloads than its fields.");
+
+            Payload payload = payloads.next();
+            if (payload.getLength() != length)
+                throw new IOException("Payload has length " + payload.getLength() + " instead of " + length + ".");
+
+            if (spool)
+                return payload;
+
+            try {
+                return Payload.of(payload.getContent());
+            } finally {
+                payload.release();
+            }
+        }
+    }
+
+    private interface Decoder {
+        Operation decode(NodeInfo origin, DataInputStream inputStream) throws IOException;
+    }
+}
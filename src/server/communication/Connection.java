@@ -1,40 +1,308 @@
 package server.communication;
 
 
-import server.chord.Node;
 import server.chord.NodeInfo;
 
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.concurrent.ExecutorService;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Connection to another server over a non-blocking channel encrypted with an SSLEngine. Connections are
+ * multiplexed on the event loops of the Mailman: the event loop reads and decodes received operations and
+ * hands them to the Mailman, while operations are encrypted by the thread sending them and written by
+ * the event loop.
+ * <p>
+ * Each operation is sent as a message made of the frame length (4 bytes), the number of payloads (4 bytes),
+ * the length of each payload (8 bytes each), the frame and then the content of the payloads.
+ */
+public class Connection implements EventLoop.Handler {
+    private static final int HANDSHAKE_MAGIC = 0x44425350;
+    private static final byte SERIALIZATION_PROTOCOL = 1;
+    private static final byte BINARY_PROTOCOL = 2;
+    /* The binary protocol is used unless the node is started with -DwireProtocol=serialization */
+    private static final byte PREFERRED_PROTOCOL = "serialization".equalsIgnoreCase(System.getProperty("wireProtocol"))
+            ? SERIALIZATION_PROTOCOL
+            : BINARY_PROTOCOL;
 
-public class Connection {
-    private final SSLSocket socket;
-    private final ObjectOutputStream objectOutputStream;
-    private final ObjectInputStream objectInputStream;
-    private NodeInfo destination;
+    private static final int CONNECT_TIMEOUT = 3000; // In milliseconds
+    private static final int HANDSHAKE_TIMEOUT = 5000; // In milliseconds
+    /* Threads sending operations wait while more than this is waiting to be written to the socket. */
+    private static final long MAX_QUEUED_BYTES = 4 * 1024 * 1024; // In bytes
+    /* Connections whose queued data is not written for this long are closed, failing the sends waiting on them. */
+    private static final long SEND_TIMEOUT = Long.getLong("sendTimeout", 10000); // In milliseconds
+    /* Received payloads smaller than this are kept in memory instead of being written to a temporary file. */
+    private static final int SPOOL_THRESHOLD = 64 * 1024; // In bytes
+    private static final int MAX_PAYLOADS = 1 << 20;
+    /* Frames are allocated whole before they are read, so their length is bounded. Frames of the serialization
+     * protocol carry their payloads, and can be larger than those of the binary protocol. */
+    private static final int MAX_FRAME_SIZE = Integer.getInteger("maxFrameSize", 64 * 1024 * 1024); // In bytes
+    /* Weight of a new sample in the smoothed round trip time, as in TCP. */
+    private static final double ROUND_TRIP_GAIN = 0.125;
 
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final EventLoop eventLoop;
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    private volatile OperationCodec codec;
+    private final NodeInfo destination;
+    private volatile boolean closed = false;
+    /* Set once this end told the other end that the connection is being closed. */
+    private volatile boolean draining = false;
+    private SelectionKey key;
+    private volatile long roundTripTime = -1; // In nanoseconds
+    private volatile long lastUsed = System.nanoTime();
+
+    /* Outgoing data, encrypted by the sending threads and written by the event loop. */
+    private final Object wrapLock = new Object();
+    private final Object sendLock = new Object();
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    /* Threads sending or waiting to send an operation. */
+    private final AtomicInteger pendingSends = new AtomicInteger();
+    private SecureOutputStream outputStream;
+
+    /* Incoming data, only touched by the event loop. */
+    private ByteBuffer networkInput;
+    private ByteBuffer applicationInput;
+    private boolean handshakeFinished = false;
+    private final boolean accepted;
+    private final ByteBuffer negotiation;
+    /* Read by the connection pool, which does not close a connection in the middle of a message. */
+    private volatile ReadState readState = ReadState.HEADER;
+    private final ByteBuffer messageHeader = ByteBuffer.allocate(8);
+    private ByteBuffer payloadLengths;
+    private ByteBuffer frame;
+    private List<Payload> payloads;
+    private ByteBuffer payloadContent;
+    private Path spoolFile;
+    private FileChannel spoolChannel;
+    private long spoolLength;
+    private long spoolRemaining;
+
+    /**
+     * Opens a connection to the given node, blocking until it is ready to send operations.
+     *
+     * @param destination
+     * @throws IOException
+     */
     Connection(NodeInfo destination) throws IOException {
         this.destination = destination;
-        socket = (SSLSocket) SSLSocketFactory.getDefault().
-                createSocket(destination.getAddress(), destination.getPort());
+        this.channel = connect(destination.getEndpoint());
+        this.engine = createEngine(destination.getEndpoint());
+        this.eventLoop = Mailman.nextEventLoop();
+        accepted = false;
+        negotiation = ByteBuffer.allocate(1);
+        start();
+
+        try {
+            ready.get(HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            closeConnection();
+            throw new IOException("Could not connect to " + destination.getEndpoint() + ".", e);
+        }
+    }
+
+    /**
+     * Sets up a connection accepted by this server. It is only used to receive operations: the origin of an operation
+     * may be a node other than the one that sent it, as when a lookup is forwarded, so operations to the node at the
+     * other end are sent on a connection opened by this server.
+     *
+     * @param channel
+     * @param eventLoop
+     * @throws IOException
+     */
+    Connection(SocketChannel channel, EventLoop eventLoop) throws IOException {
+        this.destination = null;
+        this.channel = channel;
+        this.engine = createEngine(null);
+        this.eventLoop = eventLoop;
+        accepted = true;
+        negotiation = ByteBuffer.allocate(5);
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        start();
+    }
+
+    private static SocketChannel connect(InetSocketAddress endpoint) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+
+        try {
+            channel.socket().connect(endpoint, CONNECT_TIMEOUT);
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return channel;
+    }
+
+    /**
+     * Creates the engine encrypting the connection. Accepted connections require the other end to authenticate.
+     *
+     * @param endpoint the endpoint connected to, or null if the connection was accepted.
+     * @return
+     * @throws IOException
+     */
+    private static SSLEngine createEngine(InetSocketAddress endpoint) throws IOException {
+        SSLEngine engine;
+
+        try {
+            engine = endpoint == null
+                    ? SSLContext.getDefault().createSSLEngine()
+                    : SSLContext.getDefault().createSSLEngine(endpoint.getHostString(), endpoint.getPort());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Could not create SSL engine.", e);
+        }
+
+        engine.setUseClientMode(endpoint != null);
+        if (endpoint == null)
+            engine.setNeedClientAuth(true);
 
-        socket.setTcpNoDelay(true);
-        objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
-        objectInputStream = new ObjectInputStream(socket.getInputStream());
+        return engine;
+    }
+
+    /**
+     * Registers the connection with its event loop and starts the SSL handshake.
+     */
+    private void start() {
+        networkInput = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        applicationInput = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        outputStream = new SecureOutputStream();
+
+        eventLoop.execute(() -> {
+            try {
+                key = eventLoop.register(channel, SelectionKey.OP_READ, this);
+                engine.beginHandshake();
+                handshake();
+            } catch (IOException e) {
+                closeConnection();
+            }
+        });
     }
 
-    Connection(SSLSocket socket, Node currentNode, ExecutorService connectionsThreadPool) throws IOException {
-        this.socket = socket;
-        socket.setTcpNoDelay(true);
-        objectOutputStream = new ObjectOutputStream(socket.getOutputStream());
-        objectInputStream = new ObjectInputStream(socket.getInputStream());
-        waitForAuthentication(currentNode);
+    @Override
+    public void handle(SelectionKey key) {
+        try {
+            if (key.isWritable())
+                write();
 
+            if (key.isValid() && key.isReadable())
+                read();
+        } catch (IOException | RuntimeException e) {
+            closeConnection();
+        }
+    }
+
+    /**
+     * Advances the SSL handshake as far as possible without receiving more data.
+     *
+     * @throws IOException
+     */
+    private void handshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null)
+                        task.run();
+                    break;
+                case NEED_WRAP:
+                    wrap(ByteBuffer.allocate(0));
+                    break;
+                case NEED_UNWRAP:
+                    return;
+                default:
+                    if (!handshakeFinished) {
+                        handshakeFinished = true;
+                        offerProtocol();
+                    }
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Offers this node's preferred protocol to the other end of the connection, if this end opened it.
+     *
+     * @throws IOException
+     */
+    private void offerProtocol() throws IOException {
+        if (accepted)
+            return;
+
+        ByteBuffer handshake = ByteBuffer.allocate(5);
+        handshake.putInt(HANDSHAKE_MAGIC);
+        handshake.put(PREFERRED_PROTOCOL);
+        handshake.flip();
+        wrap(handshake);
+    }
+
+    /**
+     * Reads the protocol chosen by the other end or, if this end accepted the connection, reads the protocol
+     * offered by the other end and replies with the one both ends support.
+     *
+     * @throws IOException
+     */
+    private void negotiateProtocol() throws IOException {
+        negotiation.flip();
+        byte protocol;
+
+        if (!accepted) {
+            protocol = negotiation.get();
+        } else {
+            if (negotiation.getInt() != HANDSHAKE_MAGIC)
+                throw new IOException("Connection did not start with a protocol handshake.");
+
+            protocol = (byte) Math.min(negotiation.get(), PREFERRED_PROTOCOL);
+            wrap(ByteBuffer.wrap(new byte[]{protocol}));
+        }
+
+        codec = createCodec(protocol);
+        ready.complete(null);
+    }
+
+    /**
+     * Creates the codec for the given protocol.
+     *
+     * @param protocol
+     * @return
+     * @throws IOException
+     */
+    private static OperationCodec createCodec(byte protocol) throws IOException {
+        switch (protocol) {
+            case BINARY_PROTOCOL:
+                return new BinaryCodec();
+            case SERIALIZATION_PROTOCOL:
+                return new SerializationCodec();
+            default:
+                throw new IOException("Unsupported protocol " + protocol + ".");
+        }
     }
 
     /**
@@ -43,84 +311,536 @@ public class Connection {
      * @return
      */
     boolean isOpen() {
-        return !socket.isClosed();
+        return !closed && channel.isOpen();
     }
 
     /**
-     * Sends the given operation.
+     * Sends the given operation to the given node, which is one of the nodes at the other end of the connection.
+     * Blocks while too much data is waiting to be written.
      *
+     * @param destination
      * @param operation
      * @throws IOException
      */
-    public void sendOperation(Operation operation) throws IOException {
+    public void sendOperation(NodeInfo destination, Operation operation) throws IOException {
+        lastUsed = System.nanoTime();
+        pendingSends.incrementAndGet();
+
         try {
-            synchronized (objectOutputStream) {
-                objectOutputStream.reset();
-                objectOutputStream.writeObject(operation);
-                objectOutputStream.flush();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw e;
+            send(destination, operation);
+        } finally {
+            pendingSends.decrementAndGet();
+        }
+    }
+
+    private void send(NodeInfo destination, Operation operation) throws IOException {
+        synchronized (sendLock) {
+            operation.setDestination(destination.getId());
+            Frame frame = codec.encode(operation);
+            /* The peer would close the connection on receiving it. */
+            if (frame.content.length > MAX_FRAME_SIZE)
+                throw new IOException("Frame of " + frame.content.length + " bytes is too large to be sent.");
+
+            DataOutputStream message = new DataOutputStream(outputStream);
+
+            message.writeInt(frame.content.length);
+            message.writeInt(frame.payloads.size());
+            for (Payload payload : frame.payloads)
+                message.writeLong(payload.getLength());
+
+            message.write(frame.content);
+            for (Payload payload : frame.payloads)
+                payload.transferTo(message);
+
+            message.flush();
         }
     }
 
     /**
-     * Waits for confirmation that the node is authentic.
+     * Encrypts the given data and queues it to be written by the event loop.
      *
-     * @param self
+     * @param data
+     * @throws IOException
      */
-    private void waitForAuthentication(Node self) {
-        try {
-            Operation operation;
-            operation = ((Operation) objectInputStream.readObject());
-            this.destination = operation.getOrigin();
-            Mailman.addOpenConnection(this);
-            operation.run(self);
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-            closeConnection();
+    private void wrap(ByteBuffer data) throws IOException {
+        synchronized (wrapLock) {
+            do {
+                ByteBuffer packet = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                SSLEngineResult result = engine.wrap(data, packet);
+                if (result.getStatus() != SSLEngineResult.Status.OK)
+                    throw new IOException("Could not encrypt data: " + result.getStatus() + ".");
+
+                packet.flip();
+                if (packet.hasRemaining()) {
+                    queuedBytes.addAndGet(packet.remaining());
+                    outbound.add(packet);
+                }
+            } while (data.hasRemaining());
         }
+
+        if (eventLoop.inEventLoop())
+            enableWrites();
+        else
+            eventLoop.execute(this::enableWrites);
+    }
+
+    private void enableWrites() {
+        if (key != null && key.isValid())
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
     }
 
     /**
+     * Writes as much of the queued data as the socket accepts.
      *
-     * Listen to other nodes.
+     * @throws IOException
+     */
+    private void write() throws IOException {
+        ByteBuffer packet;
+
+        while ((packet = outbound.peek()) != null) {
+            queuedBytes.addAndGet(-channel.write(packet));
+
+            if (packet.hasRemaining())
+                break;
+
+            outbound.poll();
+        }
+
+        if (outbound.isEmpty())
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+        synchronized (queuedBytes) {
+            queuedBytes.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the queued data falls below MAX_QUEUED_BYTES. If none of it is written for SEND_TIMEOUT, the other
+     * end is taken to have stalled and the connection is closed.
      *
-     * @param self
+     * @throws IOException if the connection is closed meanwhile, or times out.
      */
-    void listen(Node self) {
-        while (true) {
+    private void awaitQueueSpace() throws IOException {
+        synchronized (queuedBytes) {
+            long queued = queuedBytes.get();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SEND_TIMEOUT);
+
+            while (queuedBytes.get() > MAX_QUEUED_BYTES) {
+                if (closed)
+                    throw new IOException("Connection closed.");
+
+                /* The deadline only runs while nothing is written. */
+                if (queuedBytes.get() < queued) {
+                    queued = queuedBytes.get();
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SEND_TIMEOUT);
+                }
+
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0)
+                    break;
+
+                try {
+                    queuedBytes.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while sending.", e);
+                }
+            }
+
+            if (queuedBytes.get() <= MAX_QUEUED_BYTES)
+                return;
+        }
+
+        closeConnection();
+        throw new IOException("Nothing was written to the connection for " + SEND_TIMEOUT + " ms.");
+    }
+
+    /**
+     * Reads and decrypts the data available in the socket.
+     *
+     * @throws IOException
+     */
+    private void read() throws IOException {
+        lastUsed = System.nanoTime();
+
+        if (!networkInput.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(networkInput.capacity() * 2);
+            networkInput.flip();
+            larger.put(networkInput);
+            networkInput = larger;
+        }
+
+        if (channel.read(networkInput) < 0)
+            throw new EOFException("Connection closed by the other end.");
+
+        networkInput.flip();
+        try {
+            unwrap();
+        } finally {
+            networkInput.compact();
+        }
+    }
+
+    private void unwrap() throws IOException {
+        while (networkInput.hasRemaining()) {
+            SSLEngineResult result = engine.unwrap(networkInput, applicationInput);
+
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    return;
+                case BUFFER_OVERFLOW:
+                    applicationInput = ByteBuffer.allocate(applicationInput.capacity() * 2);
+                    continue;
+                case CLOSED:
+                    throw new EOFException("Connection closed by the other end.");
+            }
+
+            applicationInput.flip();
             try {
-                ((Operation) objectInputStream.readObject()).run(self);
-            } catch (ClassNotFoundException ignored) {
-            } catch (IOException e) {
-                closeConnection();
+                receive(applicationInput);
+            } finally {
+                applicationInput.compact();
+            }
+
+            handshake();
+
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                    && engine.getHandshakeStatus() == result.getHandshakeStatus())
+                return;
+        }
+    }
+
+    /**
+     * Processes decrypted data, which holds the protocol negotiation followed by messages.
+     *
+     * @param data
+     * @throws IOException
+     */
+    private void receive(ByteBuffer data) throws IOException {
+        if (codec == null) {
+            if (!fill(negotiation, data))
                 return;
+
+            negotiateProtocol();
+        }
+
+        while (true) {
+            switch (readState) {
+                case HEADER:
+                    if (!fill(messageHeader, data))
+                        return;
+
+                    int frameLength = messageHeader.getInt(0);
+                    int payloadCount = messageHeader.getInt(4);
+                    messageHeader.clear();
+
+                    if (frameLength <= 0 || frameLength > MAX_FRAME_SIZE || payloadCount < 0 || payloadCount > MAX_PAYLOADS)
+                        throw new IOException("Invalid message header.");
+
+                    frame = ByteBuffer.allocate(frameLength);
+                    payloadLengths = ByteBuffer.allocate(payloadCount * 8);
+                    payloads = new ArrayList<>(payloadCount);
+                    readState = ReadState.PAYLOAD_LENGTHS;
+                    break;
+                case PAYLOAD_LENGTHS:
+                    if (!fill(payloadLengths, data))
+                        return;
+
+                    payloadLengths.flip();
+                    readState = ReadState.FRAME;
+                    break;
+                case FRAME:
+                    if (!fill(frame, data))
+                        return;
+
+                    readState = ReadState.PAYLOADS;
+                    break;
+                case PAYLOADS:
+                    if (!receivePayloads(data))
+                        return;
+
+                    readState = ReadState.HEADER;
+                    messageReceived(new Frame(frame.array(), payloads));
+                    frame = null;
+                    payloads = null;
+                    payloadLengths = null;
+                    break;
             }
         }
     }
 
+    /**
+     * Receives the payloads of the current message. Large payloads are written to a temporary file as
+     * they are received, instead of being kept in memory.
+     *
+     * @param data
+     * @return true if every payload of the message was received.
+     * @throws IOException
+     */
+    private boolean receivePayloads(ByteBuffer data) throws IOException {
+        while (payloadLengths.hasRemaining() || payloadContent != null || spoolChannel != null) {
+            if (payloadContent == null && spoolChannel == null) {
+                long length = payloadLengths.getLong();
+                if (length < 0)
+                    throw new IOException("Invalid payload length " + length + ".");
+
+                if (length < SPOOL_THRESHOLD) {
+                    payloadContent = ByteBuffer.allocate((int) length);
+                } else {
+                    spoolFile = Files.createTempFile(Mailman.getSpoolDirectory(), "payload", null);
+                    spoolChannel = FileChannel.open(spoolFile, StandardOpenOption.WRITE);
+                    spoolLength = length;
+                    spoolRemaining = length;
+                }
+            }
+
+            if (payloadContent != null) {
+                if (!fill(payloadContent, data))
+                    return false;
+
+                payloads.add(Payload.of(payloadContent.array()));
+                payloadContent = null;
+            } else {
+                ByteBuffer piece = data.duplicate();
+                piece.limit(piece.position() + (int) Math.min(piece.remaining(), spoolRemaining));
+                data.position(piece.limit());
+                spoolRemaining -= piece.remaining();
+
+                while (piece.hasRemaining())
+                    spoolChannel.write(piece);
+
+                if (spoolRemaining > 0)
+                    return false;
+
+                spoolChannel.close();
+                payloads.add(Payload.temporary(spoolFile, spoolLength));
+                spoolChannel = null;
+                spoolFile = null;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Copies as much data as fits into the given buffer.
+     *
+     * @param buffer
+     * @param data
+     * @return true if the buffer is full.
+     */
+    private static boolean fill(ByteBuffer buffer, ByteBuffer data) {
+        int length = Math.min(buffer.remaining(), data.remaining());
+        ByteBuffer piece = data.duplicate();
+        piece.limit(piece.position() + length);
+        buffer.put(piece);
+        data.position(data.position() + length);
+
+        return !buffer.hasRemaining();
+    }
+
+    /**
+     * Decodes a received message and hands it to the Mailman.
+     *
+     * @param message
+     * @throws IOException
+     */
+    private void messageReceived(Frame message) throws IOException {
+        Operation operation;
+        try {
+            operation = codec.decode(message);
+        } catch (IOException | RuntimeException e) {
+            message.release();
+            throw e;
+        }
+
+        if (operation == null) {
+            message.release();
+            return;
+        }
+
+        Mailman.dispatch(operation);
+    }
+
     /**
      * Close Connection of the socket.
      *
      */
     void closeConnection() {
-        if (destination != null)
-            Mailman.connectionClosed(destination);
+        if (closed)
+            return;
+
+        closed = true;
+        Mailman.connectionClosed(this);
+
+        ready.completeExceptionally(new IOException("Connection closed."));
 
         try {
-            objectInputStream.close();
-            objectOutputStream.close();
-            socket.close();
+            channel.close();
         } catch (IOException e) {
             System.err.println("Unable to close socket");
         }
+
+        synchronized (queuedBytes) {
+            queuedBytes.notifyAll();
+        }
+
+        eventLoop.execute(this::discardPartialMessage);
+    }
+
+    /**
+     * Closes an accepted connection without losing the operations the other end is sending on it. The other end is
+     * told that the connection is closing, and closes it once it receives that. Until then, the operations it sent
+     * are still received.
+     */
+    void drain() {
+        if (closed || draining)
+            return;
+
+        draining = true;
+        eventLoop.execute(() -> {
+            try {
+                engine.closeOutbound();
+
+                synchronized (wrapLock) {
+                    ByteBuffer packet = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                    engine.wrap(ByteBuffer.allocate(0), packet);
+                    packet.flip();
+                    queuedBytes.addAndGet(packet.remaining());
+                    outbound.add(packet);
+                }
+
+                enableWrites();
+            } catch (IOException e) {
+                closeConnection();
+            }
+        });
+    }
+
+    /**
+     * Deletes the payloads of a message that was being received when the connection closed.
+     */
+    private void discardPartialMessage() {
+        if (payloads != null)
+            new Frame(null, payloads).release();
+
+        try {
+            if (spoolChannel != null)
+                spoolChannel.close();
+
+            if (spoolFile != null)
+                Files.deleteIfExists(spoolFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     NodeInfo getNodeInfo() {
         return destination;
     }
+
+    boolean isAccepted() {
+        return accepted;
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Checks if the connection is still being set up, operations are being sent on it, data is waiting to be written
+     * to the socket, or a message is being received.
+     *
+     * @return
+     */
+    boolean isBusy() {
+        return !ready.isDone() || pendingSends.get() > 0 || queuedBytes.get() > 0 || readState != ReadState.HEADER;
+    }
+
+    int getPendingSends() {
+        return pendingSends.get();
+    }
+
+    long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Gets the time since something was last sent or received on the connection.
+     *
+     * @return the idle time, in nanoseconds
+     */
+    long getIdleTime() {
+        return System.nanoTime() - lastUsed;
+    }
+
+    /**
+     * Adds a measured round trip time to the smoothed round trip time of the connection.
+     *
+     * @param sample round trip time, in nanoseconds
+     */
+    synchronized void roundTripMeasured(long sample) {
+        roundTripTime = roundTripTime < 0
+                ? sample
+                : roundTripTime + (long) (ROUND_TRIP_GAIN * (sample - roundTripTime));
+    }
+
+    /**
+     * Gets the smoothed round trip time of the connection.
+     *
+     * @return the round trip time, in nanoseconds, or -1 if it was not measured yet.
+     */
+    long getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    private enum ReadState {
+        HEADER, PAYLOAD_LENGTHS, FRAME, PAYLOADS
+    }
+
+    /**
+     * Stream that encrypts what is written to it, in pieces of at most the SSL application buffer size.
+     */
+    private class SecureOutputStream extends OutputStream {
+        private final ByteBuffer buffer = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining())
+                flush();
+
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (!buffer.hasRemaining())
+                    flush();
+
+                int piece = Math.min(length, buffer.remaining());
+                buffer.put(bytes, offset, piece);
+                offset += piece;
+                length -= piece;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffer.position() == 0)
+                return;
+
+            if (closed)
+                throw new IOException("Connection closed.");
+
+            awaitQueueSpace();
+
+            buffer.flip();
+            try {
+                wrap(buffer);
+            } finally {
+                buffer.clear();
+            }
+        }
+    }
 }
@@ -0,0 +1,254 @@
+package server.communication;
+
+import server.chord.NodeInfo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Open connections to other servers, by the endpoint their nodes listen on. Connections that were not used for a
+ * while are closed, and so is the least recently used one when too many are open, whichever end opened it. Bulk
+ * operations to a busy peer are spread over a few connections, so that large values are not written one after the
+ * other on a single socket.
+ * Reconnecting after a connection was closed resumes the previous SSL session, as every connection uses the same
+ * SSL context and sessions are cached by endpoint.
+ */
+class ConnectionPool {
+    /* Open connections beyond this close the least recently used idle one. Set with -DmaxConnections. */
+    private static final int MAX_CONNECTIONS = Integer.getInteger("maxConnections", 256);
+    /* Connections opened by this server are closed once unused for this long. Set with -DconnectionIdleTimeout.
+     * Accepted connections are left for the other end to close, and only closed once unused for twice as long. */
+    private static final long IDLE_TIMEOUT = Long.getLong("connectionIdleTimeout", 60); // In seconds
+    /* Accepted connections being closed are closed anyway once the other end did not close them for this long. */
+    private static final long DRAIN_TIMEOUT = 10; // In seconds
+    /* Connections a peer's bulk operations may be spread over. Set with -DconnectionsPerPeer. */
+    private static final int CONNECTIONS_PER_PEER = Math.max(1, Integer.getInteger("connectionsPerPeer", 2));
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ConnectionSweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ConcurrentHashMap<InetSocketAddress, List<Connection>> peers = new ConcurrentHashMap<>();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    /* Peers an additional connection is being opened to. */
+    private final Set<InetSocketAddress> opening = ConcurrentHashMap.newKeySet();
+    private final Executor executor;
+
+    /**
+     * @param executor runs the opening of additional connections, so that senders do not wait for them
+     */
+    ConnectionPool(Executor executor) {
+        this.executor = executor;
+        long sweepPeriod = Math.max(1, IDLE_TIMEOUT / 2);
+        sweeper.scheduleWithFixedDelay(this::closeIdleConnections, sweepPeriod, sweepPeriod, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Gets a connection to the given node, opening one if there is none. Bulk operations get the least busy
+     * connection, and another one is opened in the background if every connection to the peer is busy.
+     *
+     * @param node
+     * @param bulk true if the connection is for a bulk operation
+     * @return
+     * @throws IOException if the connection could not be opened
+     */
+    Connection get(NodeInfo node, boolean bulk) throws IOException {
+        List<Connection> peer = peers.get(node.getEndpoint());
+        Connection connection = null;
+
+        if (peer != null)
+            connection = bulk
+                    ? peer.stream().filter(Connection::isOpen).min(byLoad()).orElse(null)
+                    : peer.stream().filter(Connection::isOpen).findFirst().orElse(null);
+
+        if (connection == null)
+            return open(node);
+
+        if (bulk && connection.isBusy() && peer.size() < CONNECTIONS_PER_PEER)
+            openInBackground(node);
+
+        return connection;
+    }
+
+    /**
+     * Gets the first connection to the given node, without opening one.
+     *
+     * @param node
+     * @return the connection, or null if there is none.
+     */
+    Connection getIfOpen(NodeInfo node) {
+        List<Connection> peer = peers.get(node.getEndpoint());
+
+        return peer == null ? null : peer.stream().filter(Connection::isOpen).findFirst().orElse(null);
+    }
+
+    /**
+     * Opens the first connection to the given node. If another thread opened one in the meantime, the new connection
+     * is closed and the other one is used, as closing it could lose the operations being sent on it.
+     *
+     * @param node
+     * @return
+     * @throws IOException
+     */
+    private Connection open(NodeInfo node) throws IOException {
+        makeRoom();
+        Connection connection = new Connection(node);
+        Connection[] kept = {connection};
+
+        peers.compute(node.getEndpoint(), (endpoint, peer) -> {
+            Connection openConnection = peer == null
+                    ? null
+                    : peer.stream().filter(Connection::isOpen).findFirst().orElse(null);
+
+            if (openConnection != null) {
+                kept[0] = openConnection;
+                return peer;
+            }
+
+            List<Connection> newPeer = new CopyOnWriteArrayList<>();
+            newPeer.add(connection);
+            return newPeer;
+        });
+
+        if (kept[0] != connection) {
+            connection.closeConnection();
+        } else {
+            connections.add(connection);
+            /* The connection may have been closed before it was added, in which case it was not removed. */
+            if (!connection.isOpen())
+                remove(connection);
+        }
+
+        return kept[0];
+    }
+
+    /**
+     * Opens another connection to the given node, unless one is already being opened.
+     *
+     * @param node
+     */
+    private void openInBackground(NodeInfo node) {
+        if (!opening.add(node.getEndpoint()))
+            return;
+
+        executor.execute(() -> {
+            try {
+                makeRoom();
+                add(new Connection(node));
+            } catch (IOException e) {
+                System.err.println("Could not open another connection to " + node.getEndpoint() + ".");
+            } finally {
+                opening.remove(node.getEndpoint());
+            }
+        });
+    }
+
+    /**
+     * Adds a connection accepted by this server. It counts towards the maximum number of connections, and may be
+     * closed to make room for another one, but it is not used to send operations. The other end opens a new
+     * connection once it finds it closed.
+     *
+     * @param connection
+     */
+    void addAccepted(Connection connection) {
+        makeRoom();
+        connections.add(connection);
+        if (!connection.isOpen())
+            connections.remove(connection);
+    }
+
+    /**
+     * Adds a connection opened in addition to the first one to the connections of its peer.
+     *
+     * @param connection
+     */
+    private void add(Connection connection) {
+        connections.add(connection);
+        peers.compute(connection.getNodeInfo().getEndpoint(), (endpoint, peer) -> {
+            List<Connection> connectionsOfPeer = peer == null ? new CopyOnWriteArrayList<>() : peer;
+            connectionsOfPeer.add(connection);
+            return connectionsOfPeer;
+        });
+
+        if (!connection.isOpen())
+            remove(connection);
+    }
+
+    /**
+     * Forgets the given connection, after it was closed.
+     *
+     * @param connection
+     */
+    void remove(Connection connection) {
+        connections.remove(connection);
+        if (connection.isAccepted())
+            return;
+
+        peers.computeIfPresent(connection.getNodeInfo().getEndpoint(), (endpoint, peer) -> {
+            peer.remove(connection);
+            return peer.isEmpty() ? null : peer;
+        });
+    }
+
+    /**
+     * Closes the least recently used idle connection if the maximum number of connections is open. Connections opened
+     * by this server are closed first, as nothing is sent on them while they are idle. The other end of an accepted
+     * connection may be sending on it, so it is drained rather than closed. Connections in use are never closed, so
+     * the maximum may be exceeded while every connection is busy.
+     */
+    private void makeRoom() {
+        if (connections.size() < MAX_CONNECTIONS)
+            return;
+
+        connections.stream()
+                .filter(connection -> !connection.isBusy() && !connection.isDraining())
+                .max(Comparator.comparing((Connection connection) -> !connection.isAccepted())
+                        .thenComparingLong(Connection::getIdleTime))
+                .ifPresent(connection -> {
+                    if (connection.isAccepted())
+                        connection.drain();
+                    else
+                        connection.closeConnection();
+                });
+    }
+
+    /**
+     * Closes the connections opened by this server that were idle for longer than IDLE_TIMEOUT, and the accepted
+     * ones that were idle for twice as long, whose other end may have gone away without closing them, or that
+     * were drained for longer than DRAIN_TIMEOUT. The other end closes its side once it reads the end of the stream.
+     */
+    private void closeIdleConnections() {
+        long idleTimeout = TimeUnit.SECONDS.toNanos(IDLE_TIMEOUT);
+        long drainTimeout = TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT);
+
+        for (Connection connection : connections) {
+            if (connection.isDraining()) {
+                if (connection.getIdleTime() > drainTimeout)
+                    connection.closeConnection();
+            } else {
+                long timeout = connection.isAccepted() ? 2 * idleTimeout : idleTimeout;
+                if (!connection.isBusy() && connection.getIdleTime() > timeout)
+                    connection.closeConnection();
+            }
+        }
+    }
+
+    /**
+     * Orders connections by how much they have to send, least first.
+     *
+     * @return
+     */
+    private static Comparator<Connection> byLoad() {
+        return Comparator.comparingInt(Connection::getPendingSends).thenComparingLong(Connection::getQueuedBytes);
+    }
+}
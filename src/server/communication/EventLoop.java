@@ -0,0 +1,97 @@
+package server.communication;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread that multiplexes many channels with a single Selector. Channels are registered with a handler,
+ * which is called on the event loop's thread whenever its channel is ready.
+ */
+class EventLoop implements Runnable {
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+
+    EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Runs the given task on the event loop's thread. Changes to the registration of channels must
+     * be made through this method.
+     *
+     * @param task
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Checks if the caller is running on the event loop's thread.
+     *
+     * @return
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Registers the given channel with this event loop. Must be called from the event loop's thread.
+     *
+     * @param channel
+     * @param interestOps
+     * @param handler
+     * @return
+     * @throws ClosedChannelException
+     */
+    SelectionKey register(SelectableChannel channel, int interestOps, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, interestOps, handler);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                continue;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (key.isValid())
+                    ((Handler) key.attachment()).handle(key);
+            }
+        }
+    }
+
+    interface Handler {
+        /**
+         * Handles the readiness of the channel of the given key.
+         *
+         * @param key
+         */
+        void handle(SelectionKey key);
+    }
+}
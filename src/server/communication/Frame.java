@@ -0,0 +1,24 @@
+package server.communication;
+
+import java.util.List;
+
+/**
+ * Encoded operation, made of the frame holding its fields and of the payloads sent right after it.
+ */
+class Frame {
+    final byte[] content;
+    final List<Payload> payloads;
+
+    Frame(byte[] content, List<Payload> payloads) {
+        this.content = content;
+        this.payloads = payloads;
+    }
+
+    /**
+     * Releases the payloads of a frame that will not be decoded.
+     */
+    void release() {
+        for (Payload payload : payloads)
+            payload.release();
+    }
+}
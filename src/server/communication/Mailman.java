@@ -2,63 +2,102 @@ package server.communication;
 
 import server.chord.Node;
 import server.chord.NodeInfo;
+import server.utils.ThreadPools;
 
-import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
-import javax.net.ssl.SSLSocket;
 import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static server.chord.Node.OPERATION_MAX_FAILED_ATTEMPTS;
 
 public class Mailman {
-    private static final int MAX_SIMULTANEOUS_CONNECTIONS = 128;
-
-    private static final ConcurrentHashMap<NodeInfo, Connection> openConnections = new ConcurrentHashMap<>();
-    private static final ExecutorService connectionsThreadPool = Executors.newFixedThreadPool(MAX_SIMULTANEOUS_CONNECTIONS);
-    private static Node currentNode;
+    /* Every connection is multiplexed on one of a few event loops, so the number of threads does not
+     * depend on the number of peers. */
+    private static final int EVENT_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    private static final ConcurrentHashMap<BigInteger, Node> localNodes = new ConcurrentHashMap<>();
+    /* Operations that maintain the ring may block waiting for other operations, so they are run on a pool that
+     * grows as needed. Bulk operations only wait for the disk and the network, so a bounded pool is enough, and it
+     * keeps them from delaying lookups and stabilization. */
+    private static final int BULK_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService controlThreadPool = ThreadPools.newThreadPool(0);
+    private static final ExecutorService bulkThreadPool = ThreadPools.newThreadPool(BULK_THREADS);
+    /* Connections are shared by all the virtual nodes of a server, so they are kept by address and port. */
+    private static final ConnectionPool connectionPool = new ConnectionPool(controlThreadPool);
+    private static final EventLoop[] eventLoops = new EventLoop[EVENT_LOOPS];
+    private static final AtomicInteger nextEventLoop = new AtomicInteger();
+    private static Path spoolDirectory;
 
     /**
-     * Initiates the listening for Connections.
+     * Initiates the listening for Connections, delivering the received operations to the given nodes.
      *
-     * @param currentNode
+     * @param nodes virtual nodes hosted by this server
      * @param port
+     * @throws IOException
      */
-    public static void init(Node currentNode, int port) {
-        Mailman.currentNode = currentNode;
-        new Thread(() -> listenForConnections(port)).start();
+    public static void init(List<Node> nodes, int port) throws IOException {
+        for (Node node : nodes)
+            localNodes.put(node.getInfo().getId(), node);
+
+        spoolDirectory = nodes.get(0).getDistributedHashTable().getFileManager().getSpoolDir();
+
+        for (int i = 0; i < eventLoops.length; i++)
+            eventLoops[i] = new EventLoop("EventLoop-" + i);
+
+        listenForConnections(port);
     }
 
     /**
-     * Checks if the Connection is open.
+     * Gets the event loop a new connection is assigned to.
      *
-     * @param nodeInfo
      * @return
      */
-    private static boolean isConnectionOpen(NodeInfo nodeInfo) {
-        return openConnections.containsKey(nodeInfo) && openConnections.get(nodeInfo).isOpen();
+    static EventLoop nextEventLoop() {
+        return eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
     }
 
     /**
-     * Opens connection to give node.
+     * Runs a received operation on the pool of its kind.
+     *
+     * @param operation
+     */
+    static void dispatch(Operation operation) {
+        ExecutorService threadPool = operation.isBulk() ? bulkThreadPool : controlThreadPool;
+        threadPool.execute(() -> deliver(operation));
+    }
+
+    /**
+     * Gets the directory where payloads are received before being stored.
      *
-     * @param nodeInfo
      * @return
-     * @throws IOException
      */
-    private static Connection getOrOpenConnection(NodeInfo nodeInfo) throws IOException {
-        if (nodeInfo.equals(currentNode.getInfo()))
-            try {
-                throw new Exception("Opening connection to self.");
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+    static Path getSpoolDirectory() {
+        return spoolDirectory;
+    }
 
-        return isConnectionOpen(nodeInfo)
-                ? openConnections.get(nodeInfo)
-                : addOpenConnection(new Connection(nodeInfo));
+    /**
+     * Runs a received operation on the virtual node it was sent to.
+     *
+     * @param operation
+     */
+    static void deliver(Operation operation) {
+        Node node = localNodes.get(operation.getDestination());
+
+        if (node == null) {
+            System.err.println("Dropping operation for unknown node with ID " + operation.getDestination() + ".");
+            return;
+        }
+
+        operation.run(node);
     }
 
     /**
@@ -69,20 +108,25 @@ public class Mailman {
      * @throws IOException
      */
     public static void sendOperation(NodeInfo destination, Operation operation) throws IOException {
-        /* If we want to send the operation to the current node, it is equivalent to just running it.
+        /* If we want to send the operation to a node of this server, it is equivalent to just running it.
          * Otherwise, send to the correct node as expected. */
-        if (destination.equals(currentNode.getInfo())) {
-            operation.run(currentNode);
+        Node localNode = localNodes.get(destination.getId());
+
+        if (localNode != null) {
+            operation.run(localNode);
         } else {
             int attempts = OPERATION_MAX_FAILED_ATTEMPTS;
             while (attempts > 0) {
+                Connection connection = null;
                 try {
-                    getOrOpenConnection(destination).sendOperation(operation);
+                    connection = connectionPool.get(destination, operation.isBulk());
+                    connection.sendOperation(destination, operation);
                     break;
                 } catch (IOException e) {
                     e.printStackTrace();
-                    openConnections.remove(destination);
-                    addOpenConnection(new Connection(destination));
+                    /* The next attempt opens a new connection, unless there is another one to the same peer. */
+                    if (connection != null)
+                        connection.closeConnection();
                     attempts--;
                     if (attempts < 1)
                         throw e;
@@ -93,55 +137,71 @@ public class Mailman {
 
 
     /**
-     * Listening for connetions on the given port.
+     * Records a round trip time measured to the given node on the connection to it.
      *
-     * @param port
+     * @param node
+     * @param roundTripTime in nanoseconds
      */
-    private static void listenForConnections(int port) {
-        SSLServerSocket serverSocket;
-        try {
-            serverSocket = (SSLServerSocket)
-                    SSLServerSocketFactory.getDefault().createServerSocket(port);
-        } catch (IOException e) {
-            System.err.println("Error creating server socket.");
-            e.printStackTrace();
-            return;
-        }
+    public static void roundTripMeasured(NodeInfo node, long roundTripTime) {
+        Connection connection = connectionPool.getIfOpen(node);
+        if (connection != null)
+            connection.roundTripMeasured(roundTripTime);
+    }
 
-        serverSocket.setNeedClientAuth(true);
+    /**
+     * Gets the round trip time to the given node. Nodes of this server are reached without the network.
+     *
+     * @param node
+     * @return the round trip time, in nanoseconds, or -1 if it is not known.
+     */
+    public static long getRoundTripTime(NodeInfo node) {
+        if (localNodes.containsKey(node.getId()))
+            return 0;
 
-        while (true) {
-            try {
-                SSLSocket socket = (SSLSocket) serverSocket.accept();
-                new Connection(socket, currentNode, connectionsThreadPool);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        Connection connection = connectionPool.getIfOpen(node);
+        return connection == null ? -1 : connection.getRoundTripTime();
     }
 
+
     /**
-     * Add the given Operation to the Open Connections Hash Map.
+     * Listening for connetions on the given port. Connections are accepted by the first event loop
+     * and spread over all of them.
      *
-     * @param connection
-     * @return
+     * @param port
      * @throws IOException
      */
-    static Connection addOpenConnection(Connection connection) throws IOException {
-        Connection previousConnection = openConnections.put(connection.getNodeInfo(), connection);
-        if (previousConnection != null)
-            previousConnection.closeConnection();
+    private static void listenForConnections(int port) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
 
-        connectionsThreadPool.submit(() -> connection.listen(currentNode));
-        return connection;
+        EventLoop acceptor = eventLoops[0];
+        acceptor.execute(() -> {
+            try {
+                acceptor.register(serverChannel, SelectionKey.OP_ACCEPT, (key) -> acceptConnections(serverChannel));
+            } catch (ClosedChannelException e) {
+                System.err.println("Error creating server socket.");
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private static void acceptConnections(ServerSocketChannel serverChannel) {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null)
+                connectionPool.addAccepted(new Connection(channel, nextEventLoop()));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
-     * Remove the given Operation from the Open Connections Hash Map.
+     * Forgets the given connection, after it was closed.
      *
      * @param connection
      */
-    static void connectionClosed(NodeInfo connection) {
-        openConnections.remove(connection);
+    static void connectionClosed(Connection connection) {
+        connectionPool.remove(connection);
     }
 }
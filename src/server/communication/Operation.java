@@ -3,10 +3,15 @@ package server.communication;
 import server.chord.Node;
 import server.chord.NodeInfo;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.math.BigInteger;
 
 public abstract class Operation implements Serializable {
     protected final NodeInfo origin;
+    /* ID of the node the operation is sent to, which tells apart the virtual nodes of a server. */
+    private BigInteger destination;
 
     public Operation(NodeInfo origin) {
         this.origin = origin;
@@ -14,7 +19,35 @@ public abstract class Operation implements Serializable {
 
     public abstract void run(Node currentNode);
 
+    /**
+     * Writes the fields of this operation, except for the origin, in the binary wire format.
+     * Every operation also provides a static read(NodeInfo, DataInputStream) that reverses it.
+     *
+     * @param outputStream
+     * @throws IOException
+     */
+    public abstract void write(DataOutputStream outputStream) throws IOException;
+
+    /**
+     * Checks if the operation moves stored values around, as opposed to the small operations that maintain the
+     * ring. Received bulk operations are run apart from the others, so that lookups and stabilization do not wait
+     * behind them.
+     *
+     * @return
+     */
+    public boolean isBulk() {
+        return false;
+    }
+
     public NodeInfo getOrigin() {
         return this.origin;
     }
+
+    public BigInteger getDestination() {
+        return destination;
+    }
+
+    void setDestination(BigInteger destination) {
+        this.destination = destination;
+    }
 }
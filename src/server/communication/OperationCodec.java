@@ -0,0 +1,27 @@
+package server.communication;
+
+import java.io.IOException;
+
+/**
+ * Encodes and decodes the operations exchanged through a Connection.
+ * Which codec is used is negotiated when the connection is set up.
+ */
+abstract class OperationCodec {
+    /**
+     * Encodes the given operation.
+     *
+     * @param operation
+     * @return
+     * @throws IOException
+     */
+    abstract Frame encode(Operation operation) throws IOException;
+
+    /**
+     * Decodes a received frame. The payloads of the frame are owned by the returned operation.
+     *
+     * @param frame
+     * @return the operation, or null if an operation of an unknown type was received.
+     * @throws IOException
+     */
+    abstract Operation decode(Frame frame) throws IOException;
+}
@@ -1,24 +1,130 @@
 package server.communication;
 
+import java.security.SecureRandom;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Keeps track of the requests sent to other nodes. Concurrent requests for the same key share a single request,
+ * and each request has an ID that its response carries back, so late responses can not complete newer requests.
+ * Requests that get no response in time are expired.
+ */
 public class OperationManager<T, U> {
-    private final ConcurrentHashMap<T, CompletableFuture<U>> ongoingOperation = new ConcurrentHashMap<>();
+    private static final long SWEEP_PERIOD = 1000; // In milliseconds
+    /* Starting at a random value makes it unlikely that a response to a previous run of the server is mistaken
+     * for the response of a new request. */
+    private static final AtomicLong nextRequestId = new AtomicLong(new SecureRandom().nextLong());
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "OperationSweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    public CompletableFuture<U> get(T key) {
+    private final ConcurrentHashMap<T, Request<T, U>> ongoingOperation = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Request<T, U>> ongoingRequests = new ConcurrentHashMap<>();
+    private final long timeout;
+
+    /**
+     * @param timeout  time after which requests without a response are failed
+     * @param timeUnit unit of the timeout
+     */
+    public OperationManager(long timeout, TimeUnit timeUnit) {
+        this.timeout = timeUnit.toNanos(timeout);
+        sweeper.scheduleWithFixedDelay(this::expireRequests, SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    public Request<T, U> get(T key) {
         return ongoingOperation.get(key);
     }
 
-    public CompletableFuture<U> putIfAbsent(T key) {
-        return ongoingOperation.putIfAbsent(key, new CompletableFuture<>());
+    /**
+     * Registers a new request for the given key, unless there is already one.
+     *
+     * @param key
+     * @return the ongoing request, or null if a new request was registered.
+     */
+    public Request<T, U> putIfAbsent(T key) {
+        Request<T, U> request = new Request<>(key, nextRequestId.incrementAndGet(), System.nanoTime() + timeout);
+        Request<T, U> ongoingRequest = ongoingOperation.putIfAbsent(key, request);
+
+        if (ongoingRequest == null)
+            ongoingRequests.put(request.id, request);
+
+        return ongoingRequest;
+    }
+
+    /**
+     * Completes the request with the given ID. Responses to requests that already finished are ignored.
+     *
+     * @param requestId
+     * @param value
+     */
+    public void operationFinished(long requestId, U value) {
+        Request<T, U> request = remove(requestId);
+        if (request != null)
+            request.future.complete(value);
+    }
+
+    public void operationFailed(long requestId, Throwable exception) {
+        Request<T, U> request = remove(requestId);
+        if (request != null)
+            request.future.completeExceptionally(exception);
     }
 
-    public void operationFinished(T key, U value) {
-        ongoingOperation.remove(key).complete(value);
+    /**
+     * Fails the ongoing request for the given key, if there is one.
+     *
+     * @param key
+     * @param exception
+     */
+    public void operationFailed(T key, Throwable exception) {
+        Request<T, U> request = ongoingOperation.get(key);
+        if (request != null)
+            operationFailed(request.id, exception);
     }
 
-    public void operationFailed(T key, Exception exception) {
-        ongoingOperation.remove(key).completeExceptionally(exception);
+    private Request<T, U> remove(long requestId) {
+        Request<T, U> request = ongoingRequests.remove(requestId);
+        if (request != null)
+            ongoingOperation.remove(request.key, request);
+
+        return request;
+    }
+
+    /**
+     * Fails the requests whose response did not arrive in time.
+     */
+    private void expireRequests() {
+        long now = System.nanoTime();
+
+        for (Request<T, U> request : ongoingRequests.values())
+            if (now - request.deadline > 0)
+                operationFailed(request.id, new TimeoutException("No response to request " + request.id + "."));
+    }
+
+    public static class Request<T, U> {
+        private final T key;
+        private final long id;
+        private final long deadline;
+        private final CompletableFuture<U> future = new CompletableFuture<>();
+
+        private Request(T key, long id, long deadline) {
+            this.key = key;
+            this.id = id;
+            this.deadline = deadline;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public CompletableFuture<U> getFuture() {
+            return future;
+        }
     }
 }
@@ -0,0 +1,221 @@
+package server.communication;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Bulk value carried by an operation. A payload is either held in memory or backed by a region of a file,
+ * in which case it is streamed to and from the socket without being loaded into memory.
+ */
+public class Payload implements Serializable {
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024; // In bytes
+    private static final long NO_CHECKSUM = -1;
+
+    private final byte[] content;
+    private final transient Path file;
+    private final transient long offset;
+    private final transient long checksum;
+    private final transient boolean temporary;
+    private final long length;
+
+    private Payload(byte[] content) {
+        this.content = content;
+        this.file = null;
+        this.offset = 0;
+        this.checksum = NO_CHECKSUM;
+        this.temporary = false;
+        this.length = content.length;
+    }
+
+    private Payload(Path file, long offset, long length, long checksum, boolean temporary) {
+        this.content = null;
+        this.file = file;
+        this.offset = offset;
+        this.checksum = checksum;
+        this.temporary = temporary;
+        this.length = length;
+    }
+
+    /**
+     * Creates a payload held in memory.
+     *
+     * @param content
+     * @return
+     */
+    public static Payload of(byte[] content) {
+        return content == null ? null : new Payload(content);
+    }
+
+    /**
+     * Creates a payload backed by the given file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static Payload of(Path file) throws IOException {
+        return new Payload(file, 0, Files.size(file), NO_CHECKSUM, false);
+    }
+
+    /**
+     * Creates a payload backed by a region of the given file, whose content must match the given CRC32.
+     *
+     * @param file
+     * @param offset
+     * @param length
+     * @param checksum
+     * @return
+     */
+    public static Payload of(Path file, long offset, long length, int checksum) {
+        return new Payload(file, offset, length, checksum & 0xFFFFFFFFL, false);
+    }
+
+    /**
+     * Reads a payload with the given length from the stream. If a file is given, the payload is written
+     * to it as it is received and the file is deleted on release(); otherwise it is read into memory.
+     *
+     * @param inputStream
+     * @param length
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    static Payload receive(InputStream inputStream, long length, Path file) throws IOException {
+        if (file == null) {
+            byte[] content = new byte[Math.toIntExact(length)];
+            new DataInputStream(inputStream).readFully(content);
+            return new Payload(content);
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+            long remaining = length;
+
+            while (remaining > 0) {
+                int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0)
+                    throw new EOFException();
+
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                while (byteBuffer.hasRemaining())
+                    channel.write(byteBuffer);
+
+                remaining -= read;
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+
+        return new Payload(file, 0, length, NO_CHECKSUM, true);
+    }
+
+    /**
+     * Creates a payload backed by a temporary file holding a received payload, which is deleted on release().
+     *
+     * @param file
+     * @param length
+     * @return
+     */
+    static Payload temporary(Path file, long length) {
+        return new Payload(file, 0, length, NO_CHECKSUM, true);
+    }
+
+    /**
+     * Gets the length of the payload in bytes.
+     *
+     * @return
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Gets the content of the payload, reading it from its file if needed.
+     *
+     * @return
+     * @throws IOException
+     */
+    public byte[] getContent() throws IOException {
+        if (content != null)
+            return content;
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(Math.toIntExact(length));
+        transferTo(outputStream);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Writes the content of the payload to the given stream. File backed payloads are read through
+     * a FileChannel in small pieces and, if they have a checksum, verified as they are read.
+     *
+     * @param outputStream
+     * @throws IOException if the payload could not be read or does not match its checksum.
+     */
+    public void transferTo(OutputStream outputStream) throws IOException {
+        if (content != null) {
+            outputStream.write(content);
+            return;
+        }
+
+        CRC32 crc = new CRC32();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+            long position = offset;
+            long end = offset + length;
+
+            while (position < end) {
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+
+                int read = channel.read(buffer, position);
+                if (read < 0)
+                    throw new EOFException("Payload in " + file + " is truncated.");
+
+                crc.update(buffer.array(), 0, read);
+                outputStream.write(buffer.array(), 0, read);
+                position += read;
+                buffer.clear();
+            }
+        }
+
+        if (checksum != NO_CHECKSUM && crc.getValue() != checksum)
+            throw new IOException("Payload in " + file + " at offset " + offset + " is corrupted.");
+    }
+
+    /**
+     * Deletes the temporary file backing a received payload, if any.
+     */
+    public void release() {
+        if (!temporary)
+            return;
+
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Payloads are always serialized with their content, as the file they may be backed by is local.
+     *
+     * @return
+     * @throws ObjectStreamException
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        if (content != null)
+            return this;
+
+        try {
+            return new Payload(getContent());
+        } catch (IOException e) {
+            throw new InvalidObjectException("Could not read payload from " + file + ".");
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package server.communication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Collections;
+
+/**
+ * Codec based on Java serialization, kept for peers that do not support the binary codec.
+ * Payloads are serialized with their content, so frames of this codec never carry payloads.
+ */
+class SerializationCodec extends OperationCodec {
+
+    @Override
+    Frame encode(Operation operation) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(content)) {
+            objectOutputStream.writeObject(operation);
+        }
+
+        return new Frame(content.toByteArray(), Collections.emptyList());
+    }
+
+    @Override
+    Operation decode(Frame frame) throws IOException {
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(frame.content))) {
+            return (Operation) objectInputStream.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            return null;
+        }
+    }
+}
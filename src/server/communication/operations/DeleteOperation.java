@@ -2,18 +2,27 @@ package server.communication.operations;
 
 import server.chord.Node;
 import server.chord.NodeInfo;
+import server.communication.BinaryCodec;
 import server.communication.Mailman;
 import server.communication.Operation;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
 
 public class DeleteOperation extends Operation {
     private final BigInteger key;
+    private final long requestId;
+    /* Set when the operation was sent to a cached owner, which redirects it if it does not own the key anymore. */
+    private final boolean direct;
 
 
-    public DeleteOperation(NodeInfo origin, BigInteger key) {
+    public DeleteOperation(NodeInfo origin, BigInteger key, long requestId, boolean direct) {
         super(origin);
         this.key = key;
+        this.requestId = requestId;
+        this.direct = direct;
     }
 
     /**
@@ -23,8 +32,12 @@ public class DeleteOperation extends Operation {
      */
     @Override
     public void run(Node currentNode) {
-        currentNode.removeValue(key);
-        DeleteResultOperation result = new DeleteResultOperation(origin, key, currentNode.removeValue(key));
+        if (direct && !currentNode.ownsKey(key)) {
+            RedirectOperation.send(currentNode, origin, requestId);
+            return;
+        }
+
+        DeleteResultOperation result = new DeleteResultOperation(origin, requestId, currentNode.removeValue(key));
 
         try {
             Mailman.sendOperation(origin, result);
@@ -32,4 +45,20 @@ public class DeleteOperation extends Operation {
             e.printStackTrace();
         }
     }
+
+    @Override
+    public boolean isBulk() {
+        return true;
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        BinaryCodec.writeKey(outputStream, key);
+        outputStream.writeLong(requestId);
+        outputStream.writeBoolean(direct);
+    }
+
+    public static DeleteOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        return new DeleteOperation(origin, BinaryCodec.readKey(inputStream), inputStream.readLong(), inputStream.readBoolean());
+    }
 }
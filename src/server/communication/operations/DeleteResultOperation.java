@@ -4,15 +4,17 @@ import server.chord.Node;
 import server.chord.NodeInfo;
 import server.communication.Operation;
 
-import java.math.BigInteger;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 public class DeleteResultOperation extends Operation {
-    private final BigInteger key;
+    private final long requestId;
     private final boolean successful;
 
-    DeleteResultOperation(NodeInfo origin, BigInteger key, boolean successful) {
+    DeleteResultOperation(NodeInfo origin, long requestId, boolean successful) {
         super(origin);
-        this.key = key;
+        this.requestId = requestId;
         this.successful = successful;
     }
 
@@ -23,6 +25,16 @@ public class DeleteResultOperation extends Operation {
      */
     @Override
     public void run(Node currentNode) {
-        currentNode.ongoingDeletes.operationFinished(key, successful);
+        currentNode.ongoingDeletes.operationFinished(requestId, successful);
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeLong(requestId);
+        outputStream.writeBoolean(successful);
+    }
+
+    public static DeleteResultOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        return new DeleteResultOperation(origin, inputStream.readLong(), inputStream.readBoolean());
     }
 }
@@ -0,0 +1,76 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.BinaryCodec;
+import server.communication.Mailman;
+import server.communication.Operation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Collections;
+
+import static server.chord.FingerTable.ALPHA;
+
+/**
+ * Single step of an iterative lookup. The queried node answers the origin with the nodes it knows that are
+ * closest to the key, instead of forwarding the lookup itself.
+ */
+public class FindNodeOperation extends Operation {
+    private final BigInteger key;
+    private final long queryId;
+    private final boolean ownerQuery;
+
+    /**
+     * @param origin
+     * @param key
+     * @param queryId
+     * @param ownerQuery true if the queried node is expected to be the successor of the key, which it confirms by answering
+     */
+    public FindNodeOperation(NodeInfo origin, BigInteger key, long queryId, boolean ownerQuery) {
+        super(origin);
+        this.key = key;
+        this.queryId = queryId;
+        this.ownerQuery = ownerQuery;
+    }
+
+    /**
+     * This Operation answers with the closest nodes to the key known by the given current node.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        FindNodeResultOperation result;
+
+        if (ownerQuery)
+            result = new FindNodeResultOperation(currentNode.getInfo(), queryId, true, Collections.singletonList(currentNode.getInfo()));
+        else if (currentNode.keyBelongsToSuccessor(key))
+            result = new FindNodeResultOperation(currentNode.getInfo(), queryId, true, Collections.singletonList(currentNode.getSuccessor()));
+        else
+            result = new FindNodeResultOperation(currentNode.getInfo(), queryId, false, currentNode.getClosestPrecedingNodes(key, ALPHA));
+
+        try {
+            Mailman.sendOperation(origin, result);
+        } catch (Exception e) {
+            System.out.format("Failure of node with ID %d\n", origin.getId());
+            currentNode.informAboutFailure(origin);
+            return;
+        }
+
+        currentNode.informAboutExistence(origin);
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        BinaryCodec.writeKey(outputStream, key);
+        outputStream.writeLong(queryId);
+        outputStream.writeBoolean(ownerQuery);
+    }
+
+    public static FindNodeOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        return new FindNodeOperation(origin, BinaryCodec.readKey(inputStream), inputStream.readLong(), inputStream.readBoolean());
+    }
+}
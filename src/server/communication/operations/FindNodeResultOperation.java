@@ -0,0 +1,68 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.Operation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FindNodeResultOperation extends Operation {
+    private final long queryId;
+    private final boolean successorOfKey;
+    private final List<NodeInfo> nodes;
+
+    FindNodeResultOperation(NodeInfo origin, long queryId, boolean successorOfKey, List<NodeInfo> nodes) {
+        super(origin);
+        this.queryId = queryId;
+        this.successorOfKey = successorOfKey;
+        this.nodes = nodes;
+    }
+
+    /**
+     * This Operation finishes a step of an iterative lookup and removes it from the operation manager.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        currentNode.onFindNodeFinished(queryId, this);
+    }
+
+    /**
+     * Checks if the answer is the successor of the key, rather than nodes closer to it.
+     *
+     * @return
+     */
+    public boolean isSuccessorOfKey() {
+        return successorOfKey;
+    }
+
+    public List<NodeInfo> getNodes() {
+        return nodes;
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeLong(queryId);
+        outputStream.writeBoolean(successorOfKey);
+        outputStream.writeByte(nodes.size());
+        for (NodeInfo node : nodes)
+            node.write(outputStream);
+    }
+
+    public static FindNodeResultOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        long queryId = inputStream.readLong();
+        boolean successorOfKey = inputStream.readBoolean();
+        int size = inputStream.readUnsignedByte();
+        List<NodeInfo> nodes = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++)
+            nodes.add(NodeInfo.read(inputStream));
+
+        return new FindNodeResultOperation(origin, queryId, successorOfKey, nodes);
+    }
+}
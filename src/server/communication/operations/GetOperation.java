@@ -2,28 +2,50 @@ package server.communication.operations;
 
 import server.chord.Node;
 import server.chord.NodeInfo;
+import server.communication.BinaryCodec;
 import server.communication.Mailman;
 import server.communication.Operation;
+import server.communication.Payload;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
 
 public class GetOperation extends Operation {
     private final BigInteger key;
+    private final long requestId;
+    /* Set when the operation was sent to a cached owner, which redirects it if it does not own the key anymore. */
+    private final boolean direct;
+    /* Set when the operation was sent to a node that may keep a replica of the value, as the owner is slow to answer. */
+    private final boolean fromReplica;
 
-
-    public GetOperation(NodeInfo origin, BigInteger key) {
+    public GetOperation(NodeInfo origin, BigInteger key, long requestId, boolean direct, boolean fromReplica) {
         super(origin);
         this.key = key;
+        this.requestId = requestId;
+        this.direct = direct;
+        this.fromReplica = fromReplica;
     }
 
     /**
-     * This Operation gets from the given current Node the value with the key.
+     * This Operation gets from the given current Node the value with the key. A node asked for a replica it does not
+     * keep does not answer, so that the owner's answer is waited for.
      *
      * @param currentNode
      */
     @Override
     public void run(Node currentNode) {
-        GetResultOperation result = new GetResultOperation(origin, key, currentNode.getLocalValue(key));
+        if (direct && !currentNode.ownsKey(key)) {
+            RedirectOperation.send(currentNode, origin, requestId);
+            return;
+        }
+
+        Payload value = fromReplica ? currentNode.getLocalOrReplicaValue(key) : currentNode.getLocalValue(key);
+        if (fromReplica && value == null)
+            return;
+
+        GetResultOperation result = new GetResultOperation(origin, requestId, value);
 
         try {
             Mailman.sendOperation(origin, result);
@@ -31,4 +53,21 @@ public class GetOperation extends Operation {
             e.printStackTrace();
         }
     }
+
+    @Override
+    public boolean isBulk() {
+        return true;
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        BinaryCodec.writeKey(outputStream, key);
+        outputStream.writeLong(requestId);
+        outputStream.writeBoolean(direct);
+        outputStream.writeBoolean(fromReplica);
+    }
+
+    public static GetOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        return new GetOperation(origin, BinaryCodec.readKey(inputStream), inputStream.readLong(), inputStream.readBoolean(), inputStream.readBoolean());
+    }
 }
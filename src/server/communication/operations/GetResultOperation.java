@@ -2,17 +2,21 @@ package server.communication.operations;
 
 import server.chord.Node;
 import server.chord.NodeInfo;
+import server.communication.BinaryCodec;
 import server.communication.Operation;
+import server.communication.Payload;
 
-import java.math.BigInteger;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 public class GetResultOperation extends Operation {
-    private final BigInteger key;
-    private final byte[] value;
+    private final long requestId;
+    private final Payload value;
 
-    GetResultOperation(NodeInfo origin, BigInteger key, byte[] value) {
+    GetResultOperation(NodeInfo origin, long requestId, Payload value) {
         super(origin);
-        this.key = key;
+        this.requestId = requestId;
         this.value = value;
     }
 
@@ -23,6 +27,21 @@ public class GetResultOperation extends Operation {
      */
     @Override
     public void run(Node currentNode) {
-        currentNode.ongoingGets.operationFinished(key, value);
+        try {
+            currentNode.ongoingGets.operationFinished(requestId, value == null ? null : value.getContent());
+        } catch (IOException e) {
+            currentNode.ongoingGets.operationFailed(requestId, e);
+        }
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeLong(requestId);
+        BinaryCodec.writePayload(outputStream, value);
+    }
+
+    public static GetResultOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        /* The value is decrypted in memory by the restore, so there is no point in spooling it. */
+        return new GetResultOperation(origin, inputStream.readLong(), BinaryCodec.readPayload(inputStream, false));
     }
 }
@@ -2,19 +2,32 @@ package server.communication.operations;
 
 import server.chord.Node;
 import server.chord.NodeInfo;
+import server.communication.BinaryCodec;
 import server.communication.Mailman;
 import server.communication.Operation;
+import server.communication.Payload;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
 
 public class InsertOperation extends Operation {
     private final BigInteger key;
-    private final byte[] value;
+    private final long requestId;
+    /* Set when the operation was sent to a cached owner, which redirects it if it does not own the key anymore. */
+    private final boolean direct;
+    /* Set when the value is a fragment of an erasure-coded value, which is stored by the owner alone. */
+    private final boolean fragment;
+    private final Payload value;
 
-    public InsertOperation(NodeInfo origin, BigInteger key, byte[] value) {
+    public InsertOperation(NodeInfo origin, BigInteger key, Payload value, long requestId, boolean direct, boolean fragment) {
         super(origin);
         this.key = key;
         this.value = value;
+        this.requestId = requestId;
+        this.direct = direct;
+        this.fragment = fragment;
     }
 
     /**
@@ -24,12 +37,37 @@ public class InsertOperation extends Operation {
      */
     @Override
     public void run(Node currentNode) {
-        InsertResultOperation result = new InsertResultOperation(currentNode.getInfo(), key, currentNode.storeKey(key, value));
-
-        try {
-            Mailman.sendOperation(origin, result);
-        } catch (Exception e) {
-            e.printStackTrace();
+        if (direct && !currentNode.ownsKey(key)) {
+            value.release();
+            RedirectOperation.send(currentNode, origin, requestId);
+            return;
         }
+
+        /* The result is sent once enough replicas are stored, without holding a thread in the meantime. */
+        currentNode.storeKey(key, value, fragment).thenAccept(stored -> {
+            try {
+                Mailman.sendOperation(origin, new InsertResultOperation(currentNode.getInfo(), requestId, stored));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    public boolean isBulk() {
+        return true;
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        BinaryCodec.writeKey(outputStream, key);
+        BinaryCodec.writePayload(outputStream, value);
+        outputStream.writeLong(requestId);
+        outputStream.writeBoolean(direct);
+        outputStream.writeBoolean(fragment);
+    }
+
+    public static InsertOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        return new InsertOperation(origin, BinaryCodec.readKey(inputStream), BinaryCodec.readPayload(inputStream, true), inputStream.readLong(), inputStream.readBoolean(), inputStream.readBoolean());
     }
 }
@@ -4,15 +4,17 @@ import server.chord.Node;
 import server.chord.NodeInfo;
 import server.communication.Operation;
 
-import java.math.BigInteger;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 public class InsertResultOperation extends Operation {
-    private final BigInteger key;
+    private final long requestId;
     private final boolean successful;
 
-    InsertResultOperation(NodeInfo origin, BigInteger key, boolean successful) {
+    InsertResultOperation(NodeInfo origin, long requestId, boolean successful) {
         super(origin);
-        this.key = key;
+        this.requestId = requestId;
         this.successful = successful;
     }
 
@@ -23,6 +25,16 @@ public class InsertResultOperation extends Operation {
      */
     @Override
     public void run(Node currentNode) {
-        currentNode.ongoingInsertions.operationFinished(key, successful);
+        currentNode.ongoingInsertions.operationFinished(requestId, successful);
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeLong(requestId);
+        outputStream.writeBoolean(successful);
+    }
+
+    public static InsertResultOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        return new InsertResultOperation(origin, inputStream.readLong(), inputStream.readBoolean());
     }
 }
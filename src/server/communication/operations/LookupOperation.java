@@ -3,29 +3,44 @@ package server.communication.operations;
 import server.chord.FingerTable;
 import server.chord.Node;
 import server.chord.NodeInfo;
+import server.communication.BinaryCodec;
 import server.communication.Mailman;
 import server.communication.Operation;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
 
 import static server.chord.DistributedHashTable.MAXIMUM_HOPS;
 
 public class LookupOperation extends Operation {
     private BigInteger key;
+    private long requestId;
     private NodeInfo lastNode;
     private boolean reachedDestination = false;
     private int timeToLive;
 
-    public LookupOperation(FingerTable fingerTable, NodeInfo origin, BigInteger key, NodeInfo targetNode) {
+    public LookupOperation(FingerTable fingerTable, NodeInfo origin, BigInteger key, long requestId, NodeInfo targetNode) {
         super(origin);
         lastNode = origin;
         this.key = key;
+        this.requestId = requestId;
         timeToLive = MAXIMUM_HOPS;
 
         if (fingerTable.keyBelongsToSuccessor(key) && fingerTable.getSuccessor().equals(targetNode))
             reachedDestination = true;
     }
 
+    private LookupOperation(NodeInfo origin, BigInteger key, long requestId, NodeInfo lastNode, boolean reachedDestination, int timeToLive) {
+        super(origin);
+        this.key = key;
+        this.requestId = requestId;
+        this.lastNode = lastNode;
+        this.reachedDestination = reachedDestination;
+        this.timeToLive = timeToLive;
+    }
+
     /**
      * This Operation searches the node and establishes the connection between that node and the given current node.
      *
@@ -41,7 +56,7 @@ public class LookupOperation extends Operation {
 
         if (reachedDestination) {
             try {
-                Mailman.sendOperation(origin, new LookupResultOperation(currentNode.getInfo(), key));
+                Mailman.sendOperation(origin, new LookupResultOperation(currentNode.getInfo(), requestId));
                 currentNode.informAboutExistence(origin);
             } catch (Exception e) {
                 System.out.format("Failure of node with ID %d\n", origin.getId());
@@ -72,4 +87,17 @@ public class LookupOperation extends Operation {
             currentNode.informAboutExistence(lastNode);
         }
     }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        BinaryCodec.writeKey(outputStream, key);
+        outputStream.writeLong(requestId);
+        lastNode.write(outputStream);
+        outputStream.writeBoolean(reachedDestination);
+        outputStream.writeByte(timeToLive);
+    }
+
+    public static LookupOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        return new LookupOperation(origin, BinaryCodec.readKey(inputStream), inputStream.readLong(), NodeInfo.read(inputStream), inputStream.readBoolean(), inputStream.readByte());
+    }
 }
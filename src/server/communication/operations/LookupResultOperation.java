@@ -4,14 +4,16 @@ import server.chord.Node;
 import server.chord.NodeInfo;
 import server.communication.Operation;
 
-import java.math.BigInteger;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 public class LookupResultOperation extends Operation {
-    private final BigInteger key;
+    private final long requestId;
 
-    LookupResultOperation(NodeInfo origin, BigInteger key) {
+    LookupResultOperation(NodeInfo origin, long requestId) {
         super(origin);
-        this.key = key;
+        this.requestId = requestId;
     }
 
     /**
@@ -20,7 +22,15 @@ public class LookupResultOperation extends Operation {
      */
     @Override
     public void run(Node currentNode) {
-        currentNode.onLookupFinished(key, origin);
+        currentNode.onLookupFinished(requestId, origin);
     }
 
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeLong(requestId);
+    }
+
+    public static LookupResultOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        return new LookupResultOperation(origin, inputStream.readLong());
+    }
 }
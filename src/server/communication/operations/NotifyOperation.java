@@ -4,6 +4,9 @@ import server.chord.Node;
 import server.chord.NodeInfo;
 import server.communication.Operation;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
 public class NotifyOperation extends Operation {
 
     public NotifyOperation(NodeInfo origin) {
@@ -24,4 +27,12 @@ public class NotifyOperation extends Operation {
     public String getKey() {
         return null;
     }
+
+    @Override
+    public void write(DataOutputStream outputStream) {
+    }
+
+    public static NotifyOperation read(NodeInfo origin, DataInputStream inputStream) {
+        return new NotifyOperation(origin);
+    }
 }
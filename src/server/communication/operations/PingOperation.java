@@ -0,0 +1,53 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.Mailman;
+import server.communication.Operation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Measures the round trip time to a node. The time it was sent at is echoed back, so the answer needs no request ID.
+ */
+public class PingOperation extends Operation {
+    private final long sentAt;
+
+    /**
+     * @param origin
+     * @param sentAt value of System.nanoTime() at the origin when the ping was sent
+     */
+    public PingOperation(NodeInfo origin, long sentAt) {
+        super(origin);
+        this.sentAt = sentAt;
+    }
+
+    /**
+     * This Operation answers the origin with the time it was sent at.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        try {
+            Mailman.sendOperation(origin, new PingResultOperation(currentNode.getInfo(), sentAt));
+        } catch (Exception e) {
+            System.out.format("Failure of node with ID %d\n", origin.getId());
+            currentNode.informAboutFailure(origin);
+            return;
+        }
+
+        currentNode.informAboutExistence(origin);
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeLong(sentAt);
+    }
+
+    public static PingOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        return new PingOperation(origin, inputStream.readLong());
+    }
+}
@@ -0,0 +1,38 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.Mailman;
+import server.communication.Operation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class PingResultOperation extends Operation {
+    private final long sentAt;
+
+    PingResultOperation(NodeInfo origin, long sentAt) {
+        super(origin);
+        this.sentAt = sentAt;
+    }
+
+    /**
+     * This Operation records the round trip time to the origin on the connection to it.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        Mailman.roundTripMeasured(origin, System.nanoTime() - sentAt);
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeLong(sentAt);
+    }
+
+    public static PingResultOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        return new PingResultOperation(origin, inputStream.readLong());
+    }
+}
@@ -0,0 +1,56 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.Mailman;
+import server.communication.Operation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Answer of a node that was sent an operation on a key it does not own, because the sender's cached owner was stale.
+ */
+public class RedirectOperation extends Operation {
+    private final long requestId;
+
+    RedirectOperation(NodeInfo origin, long requestId) {
+        super(origin);
+        this.requestId = requestId;
+    }
+
+    /**
+     * Redirects the request with the given ID back to its origin.
+     *
+     * @param currentNode
+     * @param origin
+     * @param requestId
+     */
+    static void send(Node currentNode, NodeInfo origin, long requestId) {
+        try {
+            Mailman.sendOperation(origin, new RedirectOperation(currentNode.getInfo(), requestId));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This Operation makes the current node look up the owner of the key and send the operation again.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        currentNode.onRedirect(requestId, origin);
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeLong(requestId);
+    }
+
+    public static RedirectOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        return new RedirectOperation(origin, inputStream.readLong());
+    }
+}
@@ -0,0 +1,87 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.BinaryCodec;
+import server.communication.Mailman;
+import server.communication.Operation;
+import server.communication.Payload;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Many replicas sent together, as when a node takes over the keys of a failed predecessor. The batch is
+ * acknowledged once all of its replicas are stored.
+ */
+public class ReplicationBatchOperation extends Operation {
+    private final long requestId;
+    private final List<BigInteger> keys;
+    private final List<Payload> values;
+    /* Reference counts of the values in their owner. */
+    private final List<Integer> references;
+
+    public ReplicationBatchOperation(NodeInfo origin, long requestId, List<BigInteger> keys, List<Payload> values,
+                                     List<Integer> references) {
+        super(origin);
+        this.requestId = requestId;
+        this.keys = keys;
+        this.values = values;
+        this.references = references;
+    }
+
+    /**
+     * This Operation stores the replicas in the current node and acknowledges them to the origin.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        for (int i = 0; i < keys.size(); i++)
+            currentNode.storeReplica(origin, keys.get(i), values.get(i), references.get(i));
+
+        try {
+            Mailman.sendOperation(origin, new ReplicationResultOperation(currentNode.getInfo(), requestId));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public boolean isBulk() {
+        return true;
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeLong(requestId);
+        outputStream.writeInt(keys.size());
+
+        for (int i = 0; i < keys.size(); i++) {
+            BinaryCodec.writeKey(outputStream, keys.get(i));
+            outputStream.writeInt(references.get(i));
+            BinaryCodec.writePayload(outputStream, values.get(i));
+        }
+    }
+
+    public static ReplicationBatchOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        long requestId = inputStream.readLong();
+        /* Each entry holds a key, its reference count and the length of its payload. */
+        int size = BinaryCodec.readCount(inputStream, BinaryCodec.KEY_LENGTH + Integer.BYTES + Long.BYTES);
+        List<BigInteger> keys = new ArrayList<>(size);
+        List<Payload> values = new ArrayList<>(size);
+        List<Integer> references = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+            keys.add(BinaryCodec.readKey(inputStream));
+            references.add(inputStream.readInt());
+            values.add(BinaryCodec.readPayload(inputStream, true));
+        }
+
+        return new ReplicationBatchOperation(origin, requestId, keys, values, references);
+    }
+}
@@ -2,27 +2,63 @@ package server.communication.operations;
 
 import server.chord.Node;
 import server.chord.NodeInfo;
+import server.communication.BinaryCodec;
+import server.communication.Mailman;
 import server.communication.Operation;
+import server.communication.Payload;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
 
 public class ReplicationOperation extends Operation {
     private final BigInteger key;
-    private final byte[] value;
+    private final Payload value;
+    /* Reference count of the value in its owner, kept with the replica in case the replica is promoted. */
+    private final int references;
+    private final long requestId;
 
-    public ReplicationOperation(NodeInfo self, BigInteger key, byte[] value) {
+    public ReplicationOperation(NodeInfo self, BigInteger key, Payload value, int references, long requestId) {
         super(self);
         this.key = key;
         this.value = value;
+        this.references = references;
+        this.requestId = requestId;
     }
 
     /**
-     * This Operation stores the replicas with the value with the key in the current node.
+     * This Operation stores the replicas with the value with the key in the current node, and acknowledges it to
+     * the origin.
      *
      * @param currentNode
      */
     @Override
     public void run(Node currentNode) {
-        currentNode.storeReplica(origin, key, value);
+        currentNode.storeReplica(origin, key, value, references);
+
+        try {
+            Mailman.sendOperation(origin, new ReplicationResultOperation(currentNode.getInfo(), requestId));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public boolean isBulk() {
+        return true;
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        BinaryCodec.writeKey(outputStream, key);
+        BinaryCodec.writePayload(outputStream, value);
+        outputStream.writeInt(references);
+        outputStream.writeLong(requestId);
+    }
+
+    public static ReplicationOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        return new ReplicationOperation(origin, BinaryCodec.readKey(inputStream), BinaryCodec.readPayload(inputStream, true),
+                inputStream.readInt(), inputStream.readLong());
     }
 }
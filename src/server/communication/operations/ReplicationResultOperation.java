@@ -0,0 +1,37 @@
+package server.communication.operations;
+
+import server.chord.Node;
+import server.chord.NodeInfo;
+import server.communication.Operation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class ReplicationResultOperation extends Operation {
+    private final long requestId;
+
+    ReplicationResultOperation(NodeInfo origin, long requestId) {
+        super(origin);
+        this.requestId = requestId;
+    }
+
+    /**
+     * This Operation acknowledges a replica, or a batch of them, and removes it from the operation manager.
+     *
+     * @param currentNode
+     */
+    @Override
+    public void run(Node currentNode) {
+        currentNode.ongoingReplications.operationFinished(requestId, true);
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeLong(requestId);
+    }
+
+    public static ReplicationResultOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        return new ReplicationResultOperation(origin, inputStream.readLong());
+    }
+}
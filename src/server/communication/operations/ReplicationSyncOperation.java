@@ -2,17 +2,54 @@ package server.communication.operations;
 
 import server.chord.Node;
 import server.chord.NodeInfo;
+import server.communication.BinaryCodec;
 import server.communication.Operation;
+import server.utils.MerkleTree;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.HashSet;
 
 public class ReplicationSyncOperation extends Operation {
-
+    /* Level of the Merkle tree the nodes are in. */
+    private final int level;
+    private final int[] nodes;
+    /* Digests of the replicas under each node, or null if the nodes are leaves whose keys are sent instead. */
+    private final long[] digests;
     private final HashSet<BigInteger> keys;
 
-    public ReplicationSyncOperation(NodeInfo origin, HashSet<BigInteger> keys) {
+    /**
+     * Describes the replicas of the destination kept by the origin by the digests of the given nodes of their
+     * Merkle tree.
+     *
+     * @param origin
+     * @param level
+     * @param nodes
+     * @param digests
+     */
+    public ReplicationSyncOperation(NodeInfo origin, int level, int[] nodes, long[] digests) {
+        this(origin, level, nodes, digests, null);
+    }
+
+    /**
+     * Describes the replicas of the destination kept by the origin by the keys that fall in the given leaves of
+     * their Merkle tree.
+     *
+     * @param origin
+     * @param leaves
+     * @param keys
+     */
+    public ReplicationSyncOperation(NodeInfo origin, int[] leaves, HashSet<BigInteger> keys) {
+        this(origin, MerkleTree.DEPTH, leaves, null, keys);
+    }
+
+    private ReplicationSyncOperation(NodeInfo origin, int level, int[] nodes, long[] digests, HashSet<BigInteger> keys) {
         super(origin);
+        this.level = level;
+        this.nodes = nodes;
+        this.digests = digests;
         this.keys = keys;
     }
 
@@ -23,6 +60,42 @@ public class ReplicationSyncOperation extends Operation {
      */
     @Override
     public void run(Node currentNode) {
-        currentNode.synchronizeReplicas(origin, keys);
+        if (keys == null)
+            currentNode.compareReplicas(origin, level, nodes, digests);
+        else
+            currentNode.synchronizeReplicas(origin, nodes, keys);
+    }
+
+    @Override
+    public boolean isBulk() {
+        return true;
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeInt(level);
+        BinaryCodec.writeIndices(outputStream, nodes);
+        outputStream.writeBoolean(keys != null);
+
+        if (keys != null) {
+            BinaryCodec.writeKeys(outputStream, keys);
+        } else {
+            for (long digest : digests)
+                outputStream.writeLong(digest);
+        }
+    }
+
+    public static ReplicationSyncOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        int level = inputStream.readInt();
+        int[] nodes = BinaryCodec.readIndices(inputStream);
+
+        if (inputStream.readBoolean())
+            return new ReplicationSyncOperation(origin, level, nodes, null, BinaryCodec.readKeys(inputStream));
+
+        long[] digests = new long[nodes.length];
+        for (int i = 0; i < digests.length; i++)
+            digests[i] = inputStream.readLong();
+
+        return new ReplicationSyncOperation(origin, level, nodes, digests, null);
     }
 }
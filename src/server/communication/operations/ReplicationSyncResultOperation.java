@@ -2,26 +2,60 @@ package server.communication.operations;
 
 import server.chord.Node;
 import server.chord.NodeInfo;
+import server.communication.BinaryCodec;
 import server.communication.Operation;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.HashSet;
 
 public class ReplicationSyncResultOperation extends Operation {
     private final HashSet<BigInteger> keysToDelete;
+    /* Set when the destination no longer keeps the replicas of the origin. */
+    private final boolean dropReplicas;
+    /* Nodes of the Merkle tree of the replicas whose digests differ from the origin's, in the given level. */
+    private final int level;
+    private final int[] differingNodes;
 
-    public ReplicationSyncResultOperation(NodeInfo origin, HashSet<BigInteger> keysToDelete) {
+    public ReplicationSyncResultOperation(NodeInfo origin, HashSet<BigInteger> keysToDelete, boolean dropReplicas,
+                                          int level, int[] differingNodes) {
         super(origin);
         this.keysToDelete = keysToDelete;
+        this.dropReplicas = dropReplicas;
+        this.level = level;
+        this.differingNodes = differingNodes;
     }
 
     /**
-     * This Operation finishes the Replication Sync Operation and removes it from the operation manager.
+     * This Operation deletes the replicas the origin does not store anymore, and describes in more detail the
+     * replicas under the nodes whose digests differ.
      *
      * @param currentNode
      */
     @Override
     public void run(Node currentNode) {
+        if (dropReplicas) {
+            currentNode.dropReplicas(origin);
+            return;
+        }
+
         currentNode.updateReplicas(origin, keysToDelete);
+        if (differingNodes.length > 0)
+            currentNode.describeReplicas(origin, level, differingNodes);
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        BinaryCodec.writeKeys(outputStream, keysToDelete);
+        outputStream.writeBoolean(dropReplicas);
+        outputStream.writeInt(level);
+        BinaryCodec.writeIndices(outputStream, differingNodes);
+    }
+
+    public static ReplicationSyncResultOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        return new ReplicationSyncResultOperation(origin, BinaryCodec.readKeys(inputStream), inputStream.readBoolean(),
+                inputStream.readInt(), BinaryCodec.readIndices(inputStream));
     }
 }
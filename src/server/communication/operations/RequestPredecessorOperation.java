@@ -5,6 +5,9 @@ import server.chord.NodeInfo;
 import server.communication.Mailman;
 import server.communication.Operation;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
 public class RequestPredecessorOperation extends Operation {
 
     public RequestPredecessorOperation(NodeInfo origin) {
@@ -31,4 +34,11 @@ public class RequestPredecessorOperation extends Operation {
         }
     }
 
+    @Override
+    public void write(DataOutputStream outputStream) {
+    }
+
+    public static RequestPredecessorOperation read(NodeInfo origin, DataInputStream inputStream) {
+        return new RequestPredecessorOperation(origin);
+    }
 }
@@ -4,6 +4,9 @@ import server.chord.Node;
 import server.chord.NodeInfo;
 import server.communication.Operation;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 public class RequestPredecessorResultOperation extends Operation {
 
@@ -23,4 +26,13 @@ public class RequestPredecessorResultOperation extends Operation {
     public void run(Node currentNode) {
         currentNode.finishPredecessorRequest(predecessor);
     }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        predecessor.write(outputStream);
+    }
+
+    public static RequestPredecessorResultOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        return new RequestPredecessorResultOperation(origin, NodeInfo.read(inputStream));
+    }
 }
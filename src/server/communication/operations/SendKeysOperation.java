@@ -2,33 +2,98 @@ package server.communication.operations;
 
 import server.chord.Node;
 import server.chord.NodeInfo;
+import server.communication.BinaryCodec;
 import server.communication.Mailman;
 import server.communication.Operation;
+import server.communication.Payload;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class SendKeysOperation extends Operation {
-    private ConcurrentHashMap<BigInteger, byte[]> keys;
+    private ConcurrentHashMap<BigInteger, Payload> keys;
+    /* Fragments of erasure-coded values, which are kept apart from the other values. */
+    private ConcurrentHashMap<BigInteger, Payload> fragments;
+    /* Reference counts of the keys and fragments. */
+    private HashMap<BigInteger, Integer> references;
+    private final long requestId;
 
-    public SendKeysOperation(NodeInfo origin, ConcurrentHashMap<BigInteger, byte[]> keys) {
+    public SendKeysOperation(NodeInfo origin, ConcurrentHashMap<BigInteger, Payload> keys,
+                             ConcurrentHashMap<BigInteger, Payload> fragments, HashMap<BigInteger, Integer> references,
+                             long requestId) {
         super(origin);
         this.keys = keys;
+        this.fragments = fragments;
+        this.references = references;
+        this.requestId = requestId;
     }
 
     /**
-     * This Operation stores in the current node the successor keys.
+     * This Operation stores in the current node the successor keys and fragments.
      *
      * @param currentNode
      */
     @Override
     public void run(Node currentNode) {
-        currentNode.storeSuccessorKeys(keys);
+        currentNode.storeSuccessorKeys(keys, fragments, references);
 
         try {
-            Mailman.sendOperation(origin, new SendKeysResultOperation(currentNode.getInfo()));
+            Mailman.sendOperation(origin, new SendKeysResultOperation(currentNode.getInfo(), requestId));
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    @Override
+    public boolean isBulk() {
+        return true;
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        writeValues(outputStream, keys, references);
+        outputStream.writeLong(requestId);
+        writeValues(outputStream, fragments, references);
+    }
+
+    public static SendKeysOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        HashMap<BigInteger, Integer> references = new HashMap<>();
+        ConcurrentHashMap<BigInteger, Payload> keys = readValues(inputStream, references);
+        long requestId = inputStream.readLong();
+
+        return new SendKeysOperation(origin, keys, readValues(inputStream, references), references, requestId);
+    }
+
+    private static void writeValues(DataOutputStream outputStream, Map<BigInteger, Payload> values,
+                                    Map<BigInteger, Integer> references) throws IOException {
+        /* Copy the entries first, as the map may change while it is being written. */
+        Map<BigInteger, Payload> snapshot = new HashMap<>(values);
+
+        outputStream.writeInt(snapshot.size());
+        for (Map.Entry<BigInteger, Payload> entry : snapshot.entrySet()) {
+            BinaryCodec.writeKey(outputStream, entry.getKey());
+            outputStream.writeInt(references.getOrDefault(entry.getKey(), 1));
+            BinaryCodec.writePayload(outputStream, entry.getValue());
+        }
+    }
+
+    private static ConcurrentHashMap<BigInteger, Payload> readValues(DataInputStream inputStream,
+                                                                    Map<BigInteger, Integer> references) throws IOException {
+        /* Each entry holds a key, its reference count and the length of its payload. */
+        int size = BinaryCodec.readCount(inputStream, BinaryCodec.KEY_LENGTH + Integer.BYTES + Long.BYTES);
+        ConcurrentHashMap<BigInteger, Payload> values = new ConcurrentHashMap<>();
+
+        for (int i = 0; i < size; i++) {
+            BigInteger key = BinaryCodec.readKey(inputStream);
+            references.put(key, inputStream.readInt());
+            values.put(key, BinaryCodec.readPayload(inputStream, true));
+        }
+
+        return values;
+    }
 }
@@ -4,9 +4,16 @@ import server.chord.Node;
 import server.chord.NodeInfo;
 import server.communication.Operation;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 public class SendKeysResultOperation extends Operation {
-    public SendKeysResultOperation(NodeInfo origin) {
+    private final long requestId;
+
+    public SendKeysResultOperation(NodeInfo origin, long requestId) {
         super(origin);
+        this.requestId = requestId;
     }
 
     /**
@@ -16,6 +23,15 @@ public class SendKeysResultOperation extends Operation {
      */
     @Override
     public void run(Node currentNode) {
-        currentNode.ongoingKeySendings.operationFinished(origin.getId(), true);
+        currentNode.ongoingKeySendings.operationFinished(requestId, true);
+    }
+
+    @Override
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeLong(requestId);
+    }
+
+    public static SendKeysResultOperation read(NodeInfo origin, DataInputStream inputStream) throws IOException {
+        return new SendKeysResultOperation(origin, inputStream.readLong());
     }
 }
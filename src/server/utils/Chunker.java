@@ -0,0 +1,13 @@
+package server.utils;
+
+import java.io.IOException;
+
+public interface Chunker {
+    /**
+     * Reads the next chunk from the underlying stream.
+     *
+     * @return the chunk content, or null if the end of the stream was reached.
+     * @throws IOException
+     */
+    byte[] nextChunk() throws IOException;
+}
@@ -0,0 +1,127 @@
+package server.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a stream into chunks whose boundaries depend on the content, using a gear rolling hash
+ * with normalized chunking (as in FastCDC). Inserting or removing bytes only changes the chunks
+ * around the edit, so the remaining chunks keep their keys and are deduplicated by the DHT.
+ */
+public class ContentDefinedChunker implements Chunker {
+    public static final int MIN_CHUNK_SIZE = 256 * 1024; // In bytes
+    public static final int AVERAGE_CHUNK_SIZE = 1024 * 1024; // In bytes
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024; // In bytes
+
+    /* The seed is fixed so that every node cuts the same content at the same positions. */
+    private static final long GEAR_SEED = 0x5DEECE66DL;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(GEAR_SEED);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    private final InputStream inputStream;
+    private final int minChunkSize;
+    private final int averageChunkSize;
+    private final long smallMask;
+    private final long largeMask;
+    private final byte[] buffer;
+    private int buffered = 0;
+    private boolean endOfStream = false;
+
+    public ContentDefinedChunker(InputStream inputStream) {
+        this(inputStream, MIN_CHUNK_SIZE, AVERAGE_CHUNK_SIZE, MAX_CHUNK_SIZE);
+    }
+
+    public ContentDefinedChunker(InputStream inputStream, int minChunkSize, int averageChunkSize, int maxChunkSize) {
+        this.inputStream = inputStream;
+        this.minChunkSize = minChunkSize;
+        this.averageChunkSize = averageChunkSize;
+        this.buffer = new byte[maxChunkSize];
+
+        /* Before the average size a boundary is harder to find, after it easier,
+         * which concentrates the chunk sizes around the average. */
+        int bits = 31 - Integer.numberOfLeadingZeros(averageChunkSize);
+        smallMask = mask(bits + 2);
+        largeMask = mask(bits - 2);
+    }
+
+    /**
+     * Creates a mask with the given number of bits set, spread over the upper half of the hash,
+     * where the gear hash has the most entropy.
+     *
+     * @param bits
+     * @return
+     */
+    private static long mask(int bits) {
+        long mask = 0;
+        for (int i = 0; i < bits; i++)
+            mask |= 1L << (63 - 2 * i);
+
+        return mask;
+    }
+
+    @Override
+    public byte[] nextChunk() throws IOException {
+        fill();
+
+        if (buffered == 0)
+            return null;
+
+        int cut = findCutPoint();
+        byte[] chunk = Arrays.copyOf(buffer, cut);
+
+        System.arraycopy(buffer, cut, buffer, 0, buffered - cut);
+        buffered -= cut;
+
+        return chunk;
+    }
+
+    /**
+     * Reads from the stream until the buffer is full or the stream ends.
+     *
+     * @throws IOException
+     */
+    private void fill() throws IOException {
+        while (!endOfStream && buffered < buffer.length) {
+            int read = inputStream.read(buffer, buffered, buffer.length - buffered);
+            if (read < 0)
+                endOfStream = true;
+            else
+                buffered += read;
+        }
+    }
+
+    /**
+     * Finds the end of the next chunk in the buffered content.
+     *
+     * @return
+     */
+    private int findCutPoint() {
+        if (buffered <= minChunkSize)
+            return buffered;
+
+        int normalSize = Math.min(averageChunkSize, buffered);
+        long hash = 0;
+        int i = minChunkSize;
+
+        for (; i < normalSize; i++) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+            if ((hash & smallMask) == 0)
+                return i + 1;
+        }
+
+        for (; i < buffered; i++) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+            if ((hash & largeMask) == 0)
+                return i + 1;
+        }
+
+        return buffered;
+    }
+}
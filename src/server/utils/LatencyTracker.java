@@ -0,0 +1,49 @@
+package server.utils;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent operations of a kind, to estimate how long they usually take.
+ */
+public class LatencyTracker {
+    private static final int SAMPLES = 512;
+    /* Percentiles are only estimated once there are enough samples for them to mean something. */
+    private static final int MIN_SAMPLES = 20;
+
+    private final long[] samples = new long[SAMPLES];
+    private int next = 0;
+    private int count = 0;
+
+    /**
+     * Records the latency of an operation.
+     *
+     * @param latency in nanoseconds
+     */
+    public synchronized void record(long latency) {
+        samples[next] = latency;
+        next = (next + 1) % SAMPLES;
+        count = Math.min(count + 1, SAMPLES);
+    }
+
+    /**
+     * Gets the given percentile of the recorded latencies.
+     *
+     * @param percentile between 0 and 100
+     * @param fallback   value returned while there are too few samples
+     * @return the latency, in nanoseconds
+     */
+    public long getPercentile(double percentile, long fallback) {
+        long[] sorted;
+
+        synchronized (this) {
+            if (count < MIN_SAMPLES)
+                return fallback;
+
+            sorted = Arrays.copyOf(samples, count);
+        }
+
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
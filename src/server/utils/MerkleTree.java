@@ -0,0 +1,133 @@
+package server.utils;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Digests of a set of keys, summarized over a tree of key buckets, so that two sets can be compared by their root
+ * digests first, and then only by the digests of the subtrees that differ. Each key falls in the leaf given by its
+ * hash, and the digest of a node is the XOR of the hashes of the keys under it, so that adding or removing a key
+ * updates the tree in place, without hashing the other keys again.
+ */
+public class MerkleTree {
+    /* Leaves are DEPTH levels below the root, and every node has 2^CHILD_BITS children. */
+    public static final int DEPTH = 3;
+    private static final int CHILD_BITS = 4;
+    private static final int LEAF_BITS = DEPTH * CHILD_BITS;
+    private static final long DIGEST_SEED = 0x9E3779B97F4A7C15L;
+
+    private final AtomicLongArray[] levels = new AtomicLongArray[DEPTH + 1];
+
+    public MerkleTree() {
+        for (int level = 0; level <= DEPTH; level++)
+            levels[level] = new AtomicLongArray(1 << (level * CHILD_BITS));
+    }
+
+    /**
+     * Adds the given key, which must not be in the tree yet.
+     *
+     * @param key
+     */
+    public void add(BigInteger key) {
+        toggle(key);
+    }
+
+    /**
+     * Removes the given key, which must be in the tree.
+     *
+     * @param key
+     */
+    public void remove(BigInteger key) {
+        toggle(key);
+    }
+
+    private void toggle(BigInteger key) {
+        long hash = hash(key);
+        long digest = mix(hash ^ DIGEST_SEED);
+        int leaf = getLeaf(hash);
+
+        for (int level = 0; level <= DEPTH; level++)
+            levels[level].accumulateAndGet(leaf >>> ((DEPTH - level) * CHILD_BITS), digest, (a, b) -> a ^ b);
+    }
+
+    /**
+     * Removes every key.
+     */
+    public void clear() {
+        for (int level = 0; level <= DEPTH; level++)
+            for (int i = 0; i < levels[level].length(); i++)
+                levels[level].set(i, 0);
+    }
+
+    /**
+     * Gets the digest of the given node.
+     *
+     * @param level
+     * @param index
+     * @return
+     */
+    public long getDigest(int level, int index) {
+        return levels[level].get(index);
+    }
+
+    /**
+     * Checks if the given node is in the tree, as nodes received from other nodes may not be.
+     *
+     * @param level
+     * @param index
+     * @return
+     */
+    public static boolean contains(int level, int index) {
+        return level >= 0 && level <= DEPTH && index >= 0 && index < 1 << (level * CHILD_BITS);
+    }
+
+    /**
+     * Gets the children of the given nodes.
+     *
+     * @param indices of nodes of a level above the leaves
+     * @return the indices of their children, in the level below.
+     */
+    public static int[] getChildren(int[] indices) {
+        int[] children = new int[indices.length << CHILD_BITS];
+
+        for (int i = 0; i < indices.length; i++)
+            for (int child = 0; child < 1 << CHILD_BITS; child++)
+                children[(i << CHILD_BITS) + child] = (indices[i] << CHILD_BITS) + child;
+
+        return children;
+    }
+
+    /**
+     * Gets the leaf the given key falls in.
+     *
+     * @param key
+     * @return
+     */
+    public static int getLeaf(BigInteger key) {
+        return getLeaf(hash(key));
+    }
+
+    private static int getLeaf(long hash) {
+        return (int) (hash >>> (Long.SIZE - LEAF_BITS));
+    }
+
+    private static long hash(BigInteger key) {
+        long hash = 0xCBF29CE484222325L;
+        for (byte b : key.toByteArray())
+            hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+
+        return mix(hash);
+    }
+
+    /**
+     * Spreads every bit of the given value over the whole result, as the finalizer of SplitMix64 does.
+     *
+     * @param value
+     * @return
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
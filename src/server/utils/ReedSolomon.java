@@ -0,0 +1,245 @@
+package server.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8). A value is split into a number of data fragments, and parity fragments
+ * are computed from them, so that the value can be rebuilt from any set of fragments as large as the number of data
+ * fragments. Parity rows come from a Cauchy matrix, every square submatrix of which can be inverted.
+ * The fragments are processed in slices on the common fork-join pool, so coding a large value uses every core.
+ */
+public class ReedSolomon {
+    /* Rows of the coding matrix are told apart by distinct elements of the field, so there are at most this many. */
+    public static final int MAX_FRAGMENTS = 256;
+    /* Length of the value, written before it in the data fragments so that the padding can be told apart. */
+    private static final int LENGTH_BYTES = 4;
+    /* Slices smaller than this are not worth handing to another core. */
+    private static final int MIN_SLICE_SIZE = 16 * 1024; // In bytes
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final int FIELD_POLYNOMIAL = 0x11D;
+
+    private static final byte[] EXP = new byte[2 * 255];
+    private static final int[] LOG = new int[256];
+    /* Products of every pair of elements, so that coding a byte takes a single lookup. */
+    private static final byte[][] MULTIPLY = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = EXP[i + 255] = (byte) x;
+            LOG[x] = i;
+
+            x <<= 1;
+            if (x >= 256)
+                x ^= FIELD_POLYNOMIAL;
+        }
+
+        for (int a = 1; a < 256; a++)
+            for (int b = 1; b < 256; b++)
+                MULTIPLY[a][b] = EXP[LOG[a] + LOG[b]];
+    }
+
+    private final int dataFragments;
+    private final int parityFragments;
+    /* One row per fragment: the identity for the data fragments, followed by the Cauchy rows of the parity ones. */
+    private final byte[][] matrix;
+
+    /**
+     * @param dataFragments   fragments the value is split into, and needed to rebuild it
+     * @param parityFragments fragments that can be lost without losing the value
+     */
+    public ReedSolomon(int dataFragments, int parityFragments) {
+        if (dataFragments < 1 || parityFragments < 0 || dataFragments + parityFragments > MAX_FRAGMENTS)
+            throw new IllegalArgumentException("Invalid number of fragments: " + dataFragments + " data and "
+                    + parityFragments + " parity.");
+
+        this.dataFragments = dataFragments;
+        this.parityFragments = parityFragments;
+
+        matrix = new byte[dataFragments + parityFragments][dataFragments];
+        for (int i = 0; i < dataFragments; i++)
+            matrix[i][i] = 1;
+
+        for (int i = 0; i < parityFragments; i++)
+            for (int j = 0; j < dataFragments; j++)
+                matrix[dataFragments + i][j] = inverse((dataFragments + i) ^ j);
+    }
+
+    /**
+     * Splits the given value into data fragments and computes the parity fragments.
+     *
+     * @param value
+     * @return the data fragments followed by the parity fragments, all of the same size.
+     */
+    public byte[][] encode(byte[] value) {
+        /* The length is kept whole in the first fragment. */
+        int size = Math.max(LENGTH_BYTES, (LENGTH_BYTES + value.length + dataFragments - 1) / dataFragments);
+        byte[] padded = ByteBuffer.allocate(size * dataFragments).putInt(value.length).put(value).array();
+
+        byte[][] fragments = new byte[dataFragments + parityFragments][];
+        for (int i = 0; i < dataFragments; i++)
+            fragments[i] = Arrays.copyOfRange(padded, i * size, (i + 1) * size);
+
+        for (int i = dataFragments; i < fragments.length; i++)
+            fragments[i] = new byte[size];
+
+        code(Arrays.copyOfRange(matrix, dataFragments, matrix.length),
+                Arrays.copyOf(fragments, dataFragments),
+                Arrays.copyOfRange(fragments, dataFragments, fragments.length), size);
+
+        return fragments;
+    }
+
+    /**
+     * Rebuilds the value from the given fragments. Missing fragments are null, and are rebuilt in place, so that
+     * they can be stored again.
+     *
+     * @param fragments the data fragments followed by the parity fragments
+     * @return the value
+     * @throws IllegalArgumentException if there are fewer fragments than data fragments, or they are not of a value
+     */
+    public byte[] decode(byte[][] fragments) {
+        int[] present = IntStream.range(0, fragments.length).filter(i -> fragments[i] != null).limit(dataFragments).toArray();
+        if (fragments.length != dataFragments + parityFragments || present.length < dataFragments)
+            throw new IllegalArgumentException("Not enough fragments to rebuild the value.");
+
+        int size = fragments[present[0]].length;
+        int[] missingData = IntStream.range(0, dataFragments).filter(i -> fragments[i] == null).toArray();
+
+        if (missingData.length > 0) {
+            byte[][] decodingMatrix = invert(Arrays.stream(present).mapToObj(i -> matrix[i]).toArray(byte[][]::new));
+            byte[][] outputs = new byte[missingData.length][];
+            for (int i = 0; i < missingData.length; i++)
+                outputs[i] = fragments[missingData[i]] = new byte[size];
+
+            code(Arrays.stream(missingData).mapToObj(i -> decodingMatrix[i]).toArray(byte[][]::new),
+                    Arrays.stream(present).mapToObj(i -> fragments[i]).toArray(byte[][]::new), outputs, size);
+        }
+
+        int[] missingParity = IntStream.range(dataFragments, fragments.length).filter(i -> fragments[i] == null).toArray();
+        if (missingParity.length > 0) {
+            byte[][] outputs = new byte[missingParity.length][];
+            for (int i = 0; i < missingParity.length; i++)
+                outputs[i] = fragments[missingParity[i]] = new byte[size];
+
+            code(Arrays.stream(missingParity).mapToObj(i -> matrix[i]).toArray(byte[][]::new),
+                    Arrays.copyOf(fragments, dataFragments), outputs, size);
+        }
+
+        return join(fragments, size);
+    }
+
+    /**
+     * Gets the value written in the data fragments.
+     *
+     * @param fragments
+     * @param size      of each fragment
+     * @return
+     */
+    private byte[] join(byte[][] fragments, int size) {
+        if (size < LENGTH_BYTES)
+            throw new IllegalArgumentException("Fragments are not of a value.");
+
+        int length = ByteBuffer.wrap(fragments[0]).getInt();
+        if (length < 0 || length > size * dataFragments - LENGTH_BYTES)
+            throw new IllegalArgumentException("Fragments are not of a value.");
+
+        ByteBuffer value = ByteBuffer.allocate(length);
+        int offset = LENGTH_BYTES;
+        for (int i = 0; i < dataFragments && value.hasRemaining(); i++) {
+            value.put(fragments[i], offset, Math.min(size - offset, value.remaining()));
+            offset = 0;
+        }
+
+        return value.array();
+    }
+
+    /**
+     * Computes each output as the sum of the inputs multiplied by the coefficients of its row.
+     * The fragments are split into slices that are coded in parallel.
+     *
+     * @param rows    one row of coefficients per output, one coefficient per input
+     * @param inputs
+     * @param outputs
+     * @param size    of each fragment
+     */
+    private static void code(byte[][] rows, byte[][] inputs, byte[][] outputs, int size) {
+        int slices = Math.max(1, Math.min(PARALLELISM, size / MIN_SLICE_SIZE));
+        int sliceSize = (size + slices - 1) / slices;
+
+        IntStream.range(0, slices).parallel().forEach(slice -> {
+            int from = slice * sliceSize;
+            int to = Math.min(size, from + sliceSize);
+
+            for (int r = 0; r < outputs.length; r++) {
+                byte[] output = outputs[r];
+                Arrays.fill(output, from, to, (byte) 0);
+
+                for (int c = 0; c < inputs.length; c++) {
+                    byte[] products = MULTIPLY[rows[r][c] & 0xFF];
+                    byte[] input = inputs[c];
+
+                    for (int i = from; i < to; i++)
+                        output[i] ^= products[input[i] & 0xFF];
+                }
+            }
+        });
+    }
+
+    /**
+     * Inverts the given square matrix by Gauss-Jordan elimination.
+     *
+     * @param rows
+     * @return
+     */
+    private static byte[][] invert(byte[][] rows) {
+        int n = rows.length;
+        byte[][] work = new byte[n][];
+        byte[][] inverse = new byte[n][n];
+
+        for (int i = 0; i < n; i++) {
+            work[i] = rows[i].clone();
+            inverse[i][i] = 1;
+        }
+
+        for (int column = 0; column < n; column++) {
+            int pivot = column;
+            while (work[pivot][column] == 0)
+                pivot++;
+
+            swap(work, column, pivot);
+            swap(inverse, column, pivot);
+
+            byte[] scale = MULTIPLY[inverse(work[column][column] & 0xFF) & 0xFF];
+            for (int j = 0; j < n; j++) {
+                work[column][j] = scale[work[column][j] & 0xFF];
+                inverse[column][j] = scale[inverse[column][j] & 0xFF];
+            }
+
+            for (int row = 0; row < n; row++) {
+                if (row == column || work[row][column] == 0)
+                    continue;
+
+                byte[] factor = MULTIPLY[work[row][column] & 0xFF];
+                for (int j = 0; j < n; j++) {
+                    work[row][j] ^= factor[work[column][j] & 0xFF];
+                    inverse[row][j] ^= factor[inverse[column][j] & 0xFF];
+                }
+            }
+        }
+
+        return inverse;
+    }
+
+    private static void swap(byte[][] rows, int i, int j) {
+        byte[] row = rows[i];
+        rows[i] = rows[j];
+        rows[j] = row;
+    }
+
+    private static byte inverse(int element) {
+        return EXP[255 - LOG[element]];
+    }
+}
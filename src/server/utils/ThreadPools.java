@@ -0,0 +1,128 @@
+package server.utils;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the thread pools of the server. With -DvirtualThreads=true, and on a Java runtime that has virtual
+ * threads, tasks run on virtual threads, so tasks blocked waiting for lookups and other operations are cheap.
+ * Otherwise, the usual platform thread pools are used.
+ */
+public class ThreadPools {
+    private static final ThreadFactory virtualThreadFactory = Boolean.getBoolean("virtualThreads")
+            ? createVirtualThreadFactory()
+            : null;
+
+    /**
+     * Checks if tasks are run on virtual threads.
+     *
+     * @return
+     */
+    public static boolean usesVirtualThreads() {
+        return virtualThreadFactory != null;
+    }
+
+    /**
+     * Creates a pool for tasks that may block. With virtual threads, each task gets its own thread, but no more than
+     * the given number of them run at once, as with platform threads.
+     *
+     * @param threads number of platform threads to use, or 0 to create them as needed
+     * @return
+     */
+    public static ExecutorService newThreadPool(int threads) {
+        if (virtualThreadFactory != null) {
+            ExecutorService pool = Executors.newCachedThreadPool(virtualThreadFactory);
+            return threads > 0 ? new BoundedExecutor(pool, threads) : pool;
+        }
+
+        return threads > 0 ? Executors.newFixedThreadPool(threads) : Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Creates a pool for periodic tasks.
+     *
+     * @param threads number of threads
+     * @return
+     */
+    public static ScheduledExecutorService newScheduledThreadPool(int threads) {
+        if (virtualThreadFactory != null)
+            return Executors.newScheduledThreadPool(threads, virtualThreadFactory);
+
+        return Executors.newScheduledThreadPool(threads);
+    }
+
+    /**
+     * Runs tasks on a pool of virtual threads, letting only a given number of them run at once. The others wait
+     * for a permit in their own virtual thread, so submitting a task never blocks.
+     */
+    private static class BoundedExecutor extends AbstractExecutorService {
+        private final ExecutorService pool;
+        private final Semaphore permits;
+
+        BoundedExecutor(ExecutorService pool, int threads) {
+            this.pool = pool;
+            /* Fair, so that tasks start in the order they were submitted, as with a fixed thread pool. */
+            this.permits = new Semaphore(threads, true);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            pool.execute(() -> {
+                permits.acquireUninterruptibly();
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            pool.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return pool.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return pool.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return pool.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return pool.awaitTermination(timeout, unit);
+        }
+    }
+
+    /**
+     * Gets the factory of virtual threads through reflection, as they are not available on every runtime.
+     *
+     * @return the factory, or null if the runtime does not support virtual threads.
+     */
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads are not supported by this runtime, using platform threads.");
+            return null;
+        }
+    }
+}
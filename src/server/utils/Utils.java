@@ -29,8 +29,8 @@ public class Utils {
      * @param value
      * @return
      */
-    public static int addToNodeId(int nodeId, int value) {
-        return Integer.remainderUnsigned(nodeId + value, MAX_NODES);
+    public static BigInteger addToNodeId(BigInteger nodeId, BigInteger value) {
+        return nodeId.add(value).mod(MAX_NODES);
     }
 
     /**
@@ -39,8 +39,8 @@ public class Utils {
      * @param key
      * @return
      */
-    public static int getNodeFromKey(BigInteger key) {
-        return Integer.remainderUnsigned(key.intValue(), MAX_NODES);
+    public static BigInteger getNodeFromKey(BigInteger key) {
+        return key.mod(MAX_NODES);
     }
 
     /**
@@ -50,7 +50,7 @@ public class Utils {
      * @return
      */
     public static BigInteger getSuccessorKey(NodeInfo nodeInfo) {
-        return BigInteger.valueOf(addToNodeId(nodeInfo.getId(), 1));
+        return getSuccessorKey(nodeInfo.getId());
     }
 
     /**
@@ -59,8 +59,8 @@ public class Utils {
      * @param nodeId
      * @return
      */
-    public static BigInteger getSuccessorKey(int nodeId) {
-        return BigInteger.valueOf(addToNodeId(nodeId, 1));
+    public static BigInteger getSuccessorKey(BigInteger nodeId) {
+        return addToNodeId(nodeId, BigInteger.ONE);
     }
 
     /**
@@ -83,41 +83,13 @@ public class Utils {
      * @param key
      * @return true if the key is between the other two, or equal to the upper key
      */
-    public static boolean between(int lower, int upper, BigInteger key) {
-        int keyOwner = Integer.remainderUnsigned(key.intValue(), MAX_NODES);
+    public static boolean between(BigInteger lower, BigInteger upper, BigInteger key) {
+        BigInteger keyOwner = getNodeFromKey(key);
 
-        if (lower < upper)
-            return keyOwner > lower && keyOwner <= upper;
+        if (lower.compareTo(upper) < 0)
+            return keyOwner.compareTo(lower) > 0 && keyOwner.compareTo(upper) <= 0;
         else
-            return keyOwner > lower || keyOwner <= upper;
-    }
-
-    /**
-     * Check if a given key is between the lower and upper keys in the Chord circle
-     *
-     * @param lower
-     * @param upper
-     * @param key
-     * @return true if the key is between the other two, or equal to the upper key
-     */
-    public static boolean between(NodeInfo lower, NodeInfo upper, int key) {
-        return between(lower.getId(), upper.getId(), key);
-    }
-
-    /**
-     * Check if a given key is between the lower and upper keys in the Chord circle
-     *
-     * @param lower
-     * @param upper
-     * @param key
-     * @return true if the key is between the other two, or equal to the upper key
-     */
-    public static boolean between(int lower, int upper, int key) {
-
-        if (lower < upper)
-            return key > lower && key <= upper;
-        else
-            return key > lower || key <= upper;
+            return keyOwner.compareTo(lower) > 0 || keyOwner.compareTo(upper) <= 0;
     }
 
 	/*public byte[] turnToByteArray(Object object){